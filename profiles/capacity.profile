@@ -0,0 +1,13 @@
+# Finds the knee of the latency curve of the frontend/backend/Redis chain.
+# Rates are in requests per second, durations end with ms, s, m or h.
+
+# warmup <rate> <duration>, not included in the results
+warmup 50 30s
+# ramp <from rate> <to rate> <duration>
+ramp 50 1000 2m
+# step <first rate> <increment> <steps> <step duration>
+step 1000 500 8 30s
+# spike <base rate> <spike rate> <period> <spike duration> <duration>
+spike 500 5000 20s 2s 1m
+# soak <rate> <duration>
+soak 1000 10m
@@ -1,17 +1,21 @@
 package backend;
 
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
+import httpserver.AsyncHttpHandler;
+import httpserver.HttpResponse;
 import httpserver.HttpServer;
+import httpserver.RateLimit;
+import httpserver.Responses;
 import httputil.HttpUtil;
 import io.github.cdimascio.dotenv.Dotenv;
-import io.grpc.Context;
+import io.grpc.Deadline;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import otelutil.OtelUtil;
 import redis.clients.jedis.Jedis;
@@ -22,82 +26,97 @@ public final class BackEnd implements AutoCloseable {
   public static final String BACKEND_PATH = "/backend";
   private static final String REDIS_KEY = "MyBackendKey";
   private final HttpServer httpServer;
+  private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(4);
 
   private BackEnd() throws IOException {
     Dotenv dotenv = Dotenv.load();
     int backendServerPort = Integer.parseInt(dotenv.get("BACKEND_SERVER_PORT"));
     System.out.println(dotenv.get("OTEL_RESOURCE_ATTRIBUTES"));
-    this.httpServer =
+    HttpServer.Builder builder =
         HttpServer.newBuilder(backendServerPort)
-            .addHandler(BACKEND_PATH, new Handler(new ScheduledThreadPoolExecutor(4)))
-            .build();
+            .configure(dotenv)
+            .addAsyncHandler(
+                BACKEND_PATH,
+                new Handler(executor),
+                RateLimit.parse(dotenv.get("BACKEND_RATE_LIMIT", "")));
+    String adminPort = dotenv.get("BACKEND_ADMIN_PORT", "");
+    if (!adminPort.isEmpty()) {
+      builder.setAdminPort(Integer.parseInt(adminPort));
+    }
+    String accessLog = dotenv.get("BACKEND_ACCESS_LOG", "");
+    if (!accessLog.isEmpty()) {
+      builder.setAccessLog(Paths.get(accessLog));
+    }
+    this.httpServer = builder.build();
   }
 
   @Override
   public void close() {
+    // Drains the requests in flight, which still need the executor.
     httpServer.close();
+    executor.shutdown();
   }
 
-  private static final class Handler implements HttpHandler {
-    private final ScheduledThreadPoolExecutor executor;
+  private static final class Handler implements AsyncHttpHandler {
+    private final Executor executor;
 
     private Handler(ScheduledThreadPoolExecutor executor) {
-      this.executor = executor;
+      // Runs the Redis work in the context of the request, where the watchdog can sample it.
+      this.executor = HttpServer.contextExecutor(executor);
     }
 
     @Override
-    public void handle(HttpExchange httpExchange) throws IOException {
+    public CompletableFuture<HttpResponse> handle(HttpExchange httpExchange) {
       String action;
+      String key;
       try {
-        action = HttpUtil.splitQuery(httpExchange.getRequestURI()).get("action");
+        Map<String, String> query = HttpUtil.splitQuery(httpExchange.getRequestURI());
+        action = query.get("action");
+        key = query.getOrDefault("key", REDIS_KEY);
         if (action == null) {
-          httpExchange.sendResponseHeaders(500, 0);
-          httpExchange.getResponseBody().close();
-          return;
+          return CompletableFuture.completedFuture(Responses.status(500));
         }
       } catch (UnsupportedEncodingException e) {
-        httpExchange.sendResponseHeaders(500, 0);
-        httpExchange.getResponseBody().close();
-        return;
+        return CompletableFuture.completedFuture(Responses.status(500));
       }
-
-      // Process the request
-      Future<String> future =
-          executor.submit(
-              Context.current()
-                  .wrap(
-                      () -> {
-                        Jedis jedis = new TracingJedisWrapper("localhost");
-                        if ("increment".equals(action)) {
-                          return jedis.incr(REDIS_KEY).toString();
-                        }
-                        if ("decrement".equals(action)) {
-                          return jedis.decr(REDIS_KEY).toString();
-                        }
-                        if ("get".equals(action)) {
-                          return jedis.get(REDIS_KEY);
-                        }
-                        if ("set".equals(action)) {
-                          return jedis.set(REDIS_KEY, "42");
-                        }
-                        return null;
-                      }));
-
-      try {
-        String response = future.get();
-        if (response == null) {
-          httpExchange.sendResponseHeaders(500, 0);
-          httpExchange.getResponseBody().close();
-          return;
-        }
-        httpExchange.sendResponseHeaders(200, response.length());
-        try (OutputStream os = httpExchange.getResponseBody()) {
-          os.write(response.getBytes(Charset.defaultCharset()));
-        }
-      } catch (ExecutionException | InterruptedException ex) {
-        httpExchange.sendResponseHeaders(500, 0);
-        httpExchange.getResponseBody().close();
+      // Nobody waits for the response after the caller's deadline, skip the Redis work.
+      Deadline deadline = HttpUtil.getDeadline();
+      if (deadline != null && deadline.isExpired()) {
+        return CompletableFuture.completedFuture(Responses.status(504));
       }
+
+      // Process the request, the response is sent from the executor thread once Redis answered.
+      return CompletableFuture.supplyAsync(
+              () -> {
+                // The deadline may also pass while the request waits for an executor thread.
+                if (deadline != null && deadline.isExpired()) {
+                  throw new CancellationException("Deadline exceeded");
+                }
+                Jedis jedis = new TracingJedisWrapper("localhost");
+                if ("increment".equals(action)) {
+                  return jedis.incr(key).toString();
+                }
+                if ("decrement".equals(action)) {
+                  return jedis.decr(key).toString();
+                }
+                if ("get".equals(action)) {
+                  return jedis.get(key);
+                }
+                if ("set".equals(action)) {
+                  return jedis.set(key, "42");
+                }
+                return null;
+              },
+              executor)
+          .handle(
+              (response, error) -> {
+                if (error != null && error.getCause() instanceof CancellationException) {
+                  return Responses.status(504);
+                }
+                return error != null || response == null
+                    ? Responses.status(500)
+                    : new HttpResponse(200, response);
+              });
     }
   }
 
@@ -3,62 +3,105 @@ package frontend;
 import static backend.BackEnd.BACKEND_PATH;
 
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
 import httpclient.HttpClient;
-import httpclient.HttpResult;
+import httpserver.AsyncHttpHandler;
+import httpserver.HttpResponse;
 import httpserver.HttpServer;
+import httpserver.RateLimit;
+import httpserver.Responses;
 import httputil.HttpUtil;
 import io.github.cdimascio.dotenv.Dotenv;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
+import java.net.URLEncoder;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import otelutil.OtelUtil;
 
 public final class FrontEnd implements AutoCloseable {
 
   public static final String FRONTEND_PATH = "/frontend";
   private final HttpServer httpServer;
+  private final HttpClient httpClient;
 
   private FrontEnd() throws IOException {
     Dotenv dotenv = Dotenv.load();
     int frontendServerPort = Integer.parseInt(dotenv.get("FRONTEND_SERVER_PORT"));
     int backendServerPort = Integer.parseInt(dotenv.get("BACKEND_SERVER_PORT"));
     System.out.println(dotenv.get("OTEL_RESOURCE_ATTRIBUTES"));
-    this.httpServer =
+    this.httpClient =
+        new HttpClient(
+            backendServerPort,
+            Integer.parseInt(dotenv.get("HTTP_CLIENT_MAX_CONNECTIONS", "64")),
+            Long.parseLong(dotenv.get("HTTP_CLIENT_IDLE_TIMEOUT_MILLIS", "10000")),
+            Long.parseLong(dotenv.get("HTTP_CLIENT_ACQUIRE_TIMEOUT_MILLIS", "1000")),
+            Integer.parseInt(dotenv.get("HTTP_CLIENT_PIPELINE_DEPTH", "1")));
+    HttpServer.Builder builder =
         HttpServer.newBuilder(frontendServerPort)
-            .addHandler(FRONTEND_PATH, new Handler(backendServerPort))
-            .build();
+            .configure(dotenv)
+            .addAsyncHandler(
+                FRONTEND_PATH,
+                new Handler(httpClient),
+                RateLimit.parse(dotenv.get("FRONTEND_RATE_LIMIT", "")))
+            .addMetrics(httpClient::appendMetrics);
+    String adminPort = dotenv.get("FRONTEND_ADMIN_PORT", "");
+    if (!adminPort.isEmpty()) {
+      builder.setAdminPort(Integer.parseInt(adminPort));
+    }
+    String captureFile = dotenv.get("FRONTEND_CAPTURE_FILE", "");
+    if (!captureFile.isEmpty()) {
+      builder.setCaptureFile(Paths.get(captureFile));
+    }
+    String accessLog = dotenv.get("FRONTEND_ACCESS_LOG", "");
+    if (!accessLog.isEmpty()) {
+      builder.setAccessLog(Paths.get(accessLog));
+    }
+    this.httpServer = builder.build();
   }
 
   @Override
   public void close() {
+    // Drains the requests in flight, which still need the client.
     httpServer.close();
+    httpClient.close();
   }
 
-  private static final class Handler implements HttpHandler {
+  // Forwards the requests to the backend without holding a thread while they are in flight.
+  private static final class Handler implements AsyncHttpHandler {
     private final HttpClient httpClient;
 
-    private Handler(int backendServerPort) {
-      this.httpClient = new HttpClient(backendServerPort);
+    private Handler(HttpClient httpClient) {
+      this.httpClient = httpClient;
     }
 
     @Override
-    public void handle(HttpExchange httpExchange) throws IOException {
+    public CompletableFuture<HttpResponse> handle(HttpExchange httpExchange) {
       String action;
+      String key;
       try {
-        action = HttpUtil.splitQuery(httpExchange.getRequestURI()).get("action");
+        Map<String, String> query = HttpUtil.splitQuery(httpExchange.getRequestURI());
+        action = query.get("action");
+        key = query.get("key");
+        if (key != null) {
+          key = URLEncoder.encode(key, "UTF-8");
+        }
       } catch (UnsupportedEncodingException e) {
-        httpExchange.sendResponseHeaders(500, 0);
-        httpExchange.getResponseBody().close();
-        return;
+        return CompletableFuture.completedFuture(Responses.status(500));
       }
-      HttpResult result = httpClient.sendGet(BACKEND_PATH + "?action=" + action);
-      httpExchange.sendResponseHeaders(
-          result.getHttpResponseCode(), result.getHttpResponseContent().length());
-      try (OutputStream os = httpExchange.getResponseBody()) {
-        os.write(result.getHttpResponseContent().getBytes(Charset.defaultCharset()));
+      String path = BACKEND_PATH + "?action=" + action;
+      if (key != null) {
+        path += "&key=" + key;
       }
+      return httpClient
+          .sendGetAsync(path)
+          .thenApply(
+              result ->
+                  result.getHttpResponseCode() == 0
+                      // No response from the backend.
+                      ? Responses.status(502)
+                      : new HttpResponse(
+                          result.getHttpResponseCode(), result.getHttpResponseContent()));
     }
   }
 
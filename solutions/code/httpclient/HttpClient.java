@@ -2,42 +2,153 @@ package httpclient;
 
 import httputil.HttpUtil;
 import io.grpc.Context;
+import io.grpc.Deadline;
 import io.opentelemetry.OpenTelemetry;
 import io.opentelemetry.context.Scope;
 import io.opentelemetry.context.propagation.HttpTextFormat;
 import io.opentelemetry.trace.Span;
 import io.opentelemetry.trace.Tracer;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import threadutil.ThreadUtil;
 
-public final class HttpClient {
+/**
+ * A blocking HTTP/1.1 client that sends GET requests over a pool of persistent connections to a
+ * local server.
+ *
+ * <p>Each response is read whole, error responses included, so that its connection can send the
+ * next request. The pool opens at most {@code maxConnections} connections, a request that finds
+ * them all busy waits up to the acquire timeout and then fails with 503 Service Unavailable without
+ * being sent. Connections idle for longer than the idle timeout are closed.
+ *
+ * <p>{@link #sendGetAsync(String)} sends requests without blocking the calling thread, over a
+ * separate set of up to {@code maxConnections} connections driven by a single selector thread, so
+ * that many requests are in flight without a thread each.
+ */
+public final class HttpClient implements AutoCloseable {
   private static final Logger logger = Logger.getLogger(HttpClient.class.getName());
+  private static final int DEFAULT_MAX_CONNECTIONS = 64;
+  // Shorter than the idle timeout of the servers, so that the client closes idle connections first.
+  private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10_000;
+  private static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 1_000;
+  private static final int MAX_LINE_LENGTH = 64 * 1024;
   private static final Tracer tracer =
       OpenTelemetry.getTracerProvider().get("httpclient.HttpClient");
 
   // Inject the span context into the request
-  private static HttpTextFormat.Setter<HttpURLConnection> setter =
+  private static HttpTextFormat.Setter<Map<String, String>> setter =
       (carrier, key, value) -> {
         if (carrier == null) {
           return;
         }
-        carrier.setRequestProperty(key, value);
+        carrier.put(key, value);
       };
 
+  private final int port;
   private final String address;
+  private final ConnectionPool connectionPool;
+  private final int maxConnections;
+  private final int pipelineDepth;
+  // Created by the first asynchronous request, guarded by this.
+  private volatile NioHttpClient asyncClient;
+  private ScheduledThreadPoolExecutor deadlineScheduler;
+  private ExecutorService callbackExecutor;
+  private volatile boolean closed;
 
   public HttpClient(int port) {
+    this(
+        port, DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Creates a client for a local server whose asynchronous requests are not pipelined.
+   *
+   * @param port the port of the server.
+   * @param maxConnections the most connections open at once.
+   * @param idleTimeoutMillis how long a connection stays idle before it is closed.
+   * @param acquireTimeoutMillis how long a request waits for a connection when they are all busy.
+   */
+  public HttpClient(
+      int port, int maxConnections, long idleTimeoutMillis, long acquireTimeoutMillis) {
+    this(port, maxConnections, idleTimeoutMillis, acquireTimeoutMillis, 1);
+  }
+
+  /**
+   * Creates a client for a local server. Connections are opened when requests need them.
+   *
+   * @param port the port of the server.
+   * @param maxConnections the most connections open at once.
+   * @param idleTimeoutMillis how long a connection stays idle before it is closed.
+   * @param acquireTimeoutMillis how long a request waits for a connection when they are all busy.
+   * @param pipelineDepth the number of asynchronous requests sent on a connection without waiting
+   *     for their responses.
+   */
+  public HttpClient(
+      int port,
+      int maxConnections,
+      long idleTimeoutMillis,
+      long acquireTimeoutMillis,
+      int pipelineDepth) {
+    if (maxConnections <= 0
+        || idleTimeoutMillis <= 0
+        || acquireTimeoutMillis < 0
+        || pipelineDepth <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid connection pool: "
+              + maxConnections
+              + ", "
+              + idleTimeoutMillis
+              + ", "
+              + acquireTimeoutMillis
+              + ", "
+              + pipelineDepth);
+    }
+    this.port = port;
+    this.maxConnections = maxConnections;
+    this.pipelineDepth = pipelineDepth;
     this.address = "http://127.0.0.1:" + port;
-    logger.info("Client connect to: " + address);
+    this.connectionPool =
+        new ConnectionPool(
+            new InetSocketAddress("127.0.0.1", port),
+            maxConnections,
+            TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis),
+            TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis));
+    logger.info("Client connect to: " + address + " (up to " + maxConnections + " connections)");
   }
 
+  /**
+   * Sends a GET request, within the deadline of the current context if it has one.
+   *
+   * <p>The time left until the deadline is sent in the {@link HttpUtil#TIMEOUT_HEADER} header and
+   * bounds the time waited for a connection and for the response. Once the deadline has passed, the
+   * request is not sent and the result is 504 Gateway Timeout.
+   *
+   * @param path the path and query of the request.
+   * @return the result, with status code 0 if no response was received.
+   */
   public HttpResult sendGet(String path) {
+    Deadline deadline = HttpUtil.getDeadline();
+    long timeoutMillis = deadline == null ? 0 : deadline.timeRemaining(TimeUnit.MILLISECONDS);
+    if (deadline != null && timeoutMillis <= 0) {
+      return new HttpResult(504, "Gateway Timeout");
+    }
     URL url;
     try {
       url = new URL(address + path);
@@ -45,13 +156,12 @@ public final class HttpClient {
       return new HttpResult(400, "Bad Request");
     }
 
-    StringBuilder httpResponseContent = new StringBuilder();
+    String httpResponseContent = "";
     int httpResponseCode = 0;
     Span span = tracer.spanBuilder(url.getPath()).setSpanKind(Span.Kind.CLIENT).startSpan();
     try (Scope ignored = tracer.withSpan(span)) {
-      // Connect to the server locally
-      HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
-
+      // The headers of the request
+      Map<String, String> requestHeaders = new LinkedHashMap<>();
       span.setAttribute("component", "http");
       span.setAttribute("http.method", "GET");
       span.setAttribute("http.url", url.toString());
@@ -59,25 +169,382 @@ public final class HttpClient {
       // Inject the request with the current Context/Span.
       OpenTelemetry.getPropagators()
           .getHttpTextFormat()
-          .inject(Context.current(), httpURLConnection, setter);
+          .inject(Context.current(), requestHeaders, setter);
+
+      if (deadline != null) {
+        requestHeaders.put(HttpUtil.TIMEOUT_HEADER, Long.toString(timeoutMillis));
+      }
 
       // Process the request
-      httpURLConnection.setRequestMethod("GET");
-      httpResponseCode = httpURLConnection.getResponseCode();
-      BufferedReader in =
-          new BufferedReader(
-              new InputStreamReader(httpURLConnection.getInputStream(), Charset.defaultCharset()));
-      String inputLine;
-      while ((inputLine = in.readLine()) != null) {
-        httpResponseContent.append(inputLine);
-      }
-      in.close();
+      HttpResult result = send(url, requestHeaders, deadline);
+      httpResponseCode = result.getHttpResponseCode();
+      httpResponseContent = result.getHttpResponseContent();
+      span.setStatus(HttpUtil.parseResponseStatus(httpResponseCode, null));
     } catch (IOException e) {
+      if (e instanceof ConnectionPool.AcquireTimeoutException) {
+        httpResponseCode = deadline != null && deadline.isExpired() ? 504 : 503;
+      } else if (e instanceof SocketTimeoutException && deadline != null) {
+        httpResponseCode = 504;
+      }
+      logger.info(e.getMessage());
+      logger.info("httpResponseCode = " + httpResponseCode);
       span.setStatus(HttpUtil.parseResponseStatus(httpResponseCode, e));
     } finally {
       span.end();
     }
 
-    return new HttpResult(httpResponseCode, httpResponseContent.toString());
+    return new HttpResult(httpResponseCode, httpResponseContent);
+  }
+
+  /**
+   * Sends a GET request without blocking, within the deadline of the current context if it has one.
+   *
+   * <p>The request is sent like {@link #sendGet(String)}, and the result is 504 Gateway Timeout if
+   * the deadline passes before the response arrives. The result completes in the context of the
+   * caller: the callbacks chained to it, except the {@code *Async} ones, see the current span and
+   * deadline of the caller. They run on a thread of their own, a virtual thread from Java 21, so
+   * that a callback that blocks, such as one writing a response, does not hold up the other
+   * requests.
+   *
+   * @param path the path and query of the request.
+   * @return the result, with status code 0 if no response was received.
+   */
+  public CompletableFuture<HttpResult> sendGetAsync(String path) {
+    Context context = Context.current();
+    Deadline deadline = HttpUtil.getDeadline();
+    URL url;
+    try {
+      url = new URL(address + path);
+    } catch (MalformedURLException e) {
+      return CompletableFuture.completedFuture(new HttpResult(400, "Bad Request"));
+    }
+    NioHttpClient client;
+    try {
+      client = asyncClient();
+    } catch (IOException e) {
+      logger.info(e.getMessage());
+      return CompletableFuture.completedFuture(new HttpResult(0, ""));
+    }
+    Span span = tracer.spanBuilder(url.getPath()).setSpanKind(Span.Kind.CLIENT).startSpan();
+    // The headers of the request
+    Map<String, String> requestHeaders = new LinkedHashMap<>();
+    try (Scope ignored = tracer.withSpan(span)) {
+      span.setAttribute("component", "http");
+      span.setAttribute("http.method", "GET");
+      span.setAttribute("http.url", url.toString());
+
+      // Inject the request with the current Context/Span.
+      OpenTelemetry.getPropagators()
+          .getHttpTextFormat()
+          .inject(Context.current(), requestHeaders, setter);
+    }
+
+    CompletableFuture<HttpResult> sent = client.sendGet(url.getFile(), requestHeaders);
+    // The response, or 504 Gateway Timeout at the deadline if it comes first.
+    CompletableFuture<HttpResult> response = new CompletableFuture<>();
+    if (deadline != null && !sent.isDone()) {
+      try {
+        ScheduledFuture<?> timeout =
+            deadline.runOnExpiration(
+                () -> response.complete(new HttpResult(504, "Gateway Timeout")), deadlineScheduler);
+        sent.whenComplete((httpResult, e) -> timeout.cancel(false));
+      } catch (RejectedExecutionException e) {
+        // The client was closed meanwhile, which completes the request with status code 0.
+      }
+    }
+    sent.whenComplete(
+        (httpResult, e) -> {
+          if (e != null) {
+            response.completeExceptionally(e);
+          } else {
+            response.complete(httpResult);
+          }
+        });
+    CompletableFuture<HttpResult> result = new CompletableFuture<>();
+    // Off the selector thread, which completes the responses of all the asynchronous requests.
+    response.whenCompleteAsync(
+        (httpResult, e) ->
+            context.run(
+                () -> {
+                  // The span ends before the callbacks of the caller run.
+                  span.setStatus(
+                      HttpUtil.parseResponseStatus(
+                          httpResult == null ? 0 : httpResult.getHttpResponseCode(), e));
+                  span.end();
+                  if (e != null) {
+                    result.completeExceptionally(e);
+                  } else {
+                    result.complete(httpResult);
+                  }
+                }),
+        this::executeCallback);
+    return result;
+  }
+
+  // Runs the callbacks of an asynchronous result, on the calling thread once the client is closed.
+  private void executeCallback(Runnable callback) {
+    try {
+      callbackExecutor.execute(callback);
+    } catch (RejectedExecutionException e) {
+      callback.run();
+    }
+  }
+
+  // Creates the asynchronous transport on first use, the blocking requests do not need it.
+  private NioHttpClient asyncClient() throws IOException {
+    NioHttpClient client = asyncClient;
+    if (client != null && !closed) {
+      return client;
+    }
+    synchronized (this) {
+      if (closed) {
+        throw new IOException("The client is closed");
+      }
+      if (asyncClient == null) {
+        deadlineScheduler =
+            new ScheduledThreadPoolExecutor(
+                1,
+                runnable -> {
+                  Thread thread = new Thread(runnable, "http-client-" + port + "-deadlines");
+                  thread.setDaemon(true);
+                  return thread;
+                });
+        // Most requests complete before their deadline, do not keep their timers until then.
+        deadlineScheduler.setRemoveOnCancelPolicy(true);
+        callbackExecutor =
+            ThreadUtil.newVirtualThreadPerTaskExecutor("http-client-" + port + "-callback-");
+        asyncClient = new NioHttpClient(port, maxConnections, pipelineDepth);
+      }
+      return asyncClient;
+    }
+  }
+
+  /**
+   * Appends the metrics of the connection pool in the Prometheus text format.
+   *
+   * @param builder the builder to append to.
+   */
+  public void appendMetrics(StringBuilder builder) {
+    connectionPool.appendTo(builder);
+  }
+
+  /**
+   * Closes the idle connections, and the others once their response is read. The asynchronous
+   * requests still in flight complete with status code 0.
+   */
+  @Override
+  public void close() {
+    connectionPool.close();
+    synchronized (this) {
+      closed = true;
+      if (asyncClient != null) {
+        asyncClient.close();
+        deadlineScheduler.shutdownNow();
+        // The callbacks of the requests failed by the close still run.
+        callbackExecutor.shutdown();
+      }
+    }
+  }
+
+  private HttpResult send(URL url, Map<String, String> requestHeaders, Deadline deadline)
+      throws IOException {
+    StringBuilder request =
+        new StringBuilder("GET ")
+            .append(url.getFile())
+            .append(" HTTP/1.1\r\nHost: ")
+            .append(url.getAuthority())
+            .append("\r\n");
+    for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+      request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    byte[] requestBytes = request.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+    while (true) {
+      long remainingNanos =
+          deadline == null ? Long.MAX_VALUE : deadline.timeRemaining(TimeUnit.NANOSECONDS);
+      ConnectionPool.Connection connection =
+          connectionPool.acquire(remainingNanos, timeoutMillis(deadline));
+      boolean reusable = false;
+      boolean responseStarted = false;
+      try {
+        connection.setReadTimeout(timeoutMillis(deadline));
+        connection.getOutput().write(requestBytes);
+        responseStarted = connection.awaitResponse();
+        if (!responseStarted) {
+          throw new EOFException("The connection closed before the response");
+        }
+        Response response = readResponse(connection.getInput());
+        reusable = response.keepAlive;
+        return new HttpResult(response.status, response.body);
+      } catch (IOException e) {
+        // The server closed the connection while it was idle, it did not process the request,
+        // which is sent again on a new connection. Once the response started, or after a timeout,
+        // the server may have processed it, and actions such as increment must not apply twice.
+        if (connection.isReused() && !responseStarted && !(e instanceof SocketTimeoutException)) {
+          continue;
+        }
+        throw e;
+      } finally {
+        connectionPool.release(connection, reusable);
+      }
+    }
+  }
+
+  // The time left until the deadline as a socket timeout, 0 for none.
+  private static int timeoutMillis(Deadline deadline) {
+    if (deadline == null) {
+      return 0;
+    }
+    long timeoutMillis = deadline.timeRemaining(TimeUnit.MILLISECONDS);
+    return (int) Math.max(1, Math.min(timeoutMillis, Integer.MAX_VALUE));
+  }
+
+  private static Response readResponse(InputStream input) throws IOException {
+    while (true) {
+      String statusLine = readLine(input);
+      String[] parts = statusLine.split(" ");
+      int status = parts.length < 2 || !parts[0].startsWith("HTTP/1.") ? -1 : parseStatus(parts[1]);
+      if (status < 0) {
+        throw new IOException("Malformed status line: " + statusLine);
+      }
+      boolean keepAlive = !parts[0].equals("HTTP/1.0");
+      long contentLength = -1;
+      boolean chunked = false;
+      String line;
+      while (!(line = readLine(input)).isEmpty()) {
+        int colon = line.indexOf(':');
+        if (colon < 0) {
+          continue;
+        }
+        String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+        String value = line.substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+        if ("content-length".equals(name)) {
+          contentLength = parseContentLength(value);
+        } else if ("transfer-encoding".equals(name)) {
+          chunked = value.endsWith("chunked");
+        } else if ("connection".equals(name)) {
+          keepAlive = "keep-alive".equals(value) || (keepAlive && !"close".equals(value));
+        }
+      }
+      if (status / 100 == 1) {
+        // An interim response, the final response follows.
+        continue;
+      }
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      if (status == 204 || status == 304) {
+        // No body.
+      } else if (chunked) {
+        readChunks(input, body);
+      } else if (contentLength >= 0) {
+        readFully(input, body, contentLength);
+      } else {
+        // The body ends with the connection.
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+          body.write(buffer, 0, read);
+        }
+        keepAlive = false;
+      }
+      return new Response(
+          status, new String(body.toByteArray(), StandardCharsets.UTF_8), keepAlive);
+    }
+  }
+
+  // Returns the three-digit status code, or -1 if it is malformed.
+  private static int parseStatus(String value) {
+    if (value.length() != 3) {
+      return -1;
+    }
+    int status = 0;
+    for (int i = 0; i < 3; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      status = status * 10 + c - '0';
+    }
+    return status < 100 ? -1 : status;
+  }
+
+  private static long parseContentLength(String value) throws IOException {
+    try {
+      long contentLength = Long.parseLong(value);
+      if (contentLength >= 0) {
+        return contentLength;
+      }
+    } catch (NumberFormatException e) {
+      // Reported below.
+    }
+    throw new IOException("Malformed Content-Length: " + value);
+  }
+
+  private static void readChunks(InputStream input, ByteArrayOutputStream body) throws IOException {
+    while (true) {
+      String sizeLine = readLine(input);
+      int extension = sizeLine.indexOf(';');
+      long size;
+      try {
+        size =
+            Long.parseLong(
+                (extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid chunk size: " + sizeLine, e);
+      }
+      if (size == 0) {
+        // Skip the trailer, which ends with an empty line.
+        while (!readLine(input).isEmpty()) {
+          // Ignored.
+        }
+        return;
+      }
+      readFully(input, body, size);
+      readLine(input);
+    }
+  }
+
+  private static void readFully(InputStream input, ByteArrayOutputStream body, long length)
+      throws IOException {
+    byte[] buffer = new byte[(int) Math.min(length, 8192)];
+    long remaining = length;
+    while (remaining > 0) {
+      int read = input.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+      if (read < 0) {
+        throw new EOFException("The connection closed before the end of the response");
+      }
+      body.write(buffer, 0, read);
+      remaining -= read;
+    }
+  }
+
+  // Reads a line ending with CRLF, without it.
+  private static String readLine(InputStream input) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = input.read()) != '\n') {
+      if (b < 0) {
+        throw new EOFException("The connection closed before the end of the response");
+      }
+      if (line.length() >= MAX_LINE_LENGTH) {
+        throw new IOException("Response line too long");
+      }
+      line.append((char) b);
+    }
+    int length = line.length();
+    if (length > 0 && line.charAt(length - 1) == '\r') {
+      line.setLength(length - 1);
+    }
+    return line.toString();
+  }
+
+  private static final class Response {
+    private final int status;
+    private final String body;
+    private final boolean keepAlive;
+
+    private Response(int status, String body, boolean keepAlive) {
+      this.status = status;
+      this.body = body;
+      this.keepAlive = keepAlive;
+    }
   }
 }
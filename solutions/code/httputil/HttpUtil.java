@@ -1,13 +1,23 @@
 package httputil;
 
+import io.grpc.Context;
+import io.grpc.Deadline;
 import io.opentelemetry.trace.Status;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLDecoder;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public final class HttpUtil {
+  /**
+   * The request header with the time left to answer, in milliseconds. It is relative rather than an
+   * absolute time, so that it does not depend on the clocks of the hosts being synchronized.
+   */
+  public static final String TIMEOUT_HEADER = "X-Request-Timeout-Millis";
+
+  private static final Context.Key<Deadline> DEADLINE_KEY = Context.key("deadline");
   private static final Status STATUS_100 = Status.UNKNOWN.withDescription("Continue");
   private static final Status STATUS_101 = Status.UNKNOWN.withDescription("Switching Protocols");
   private static final Status STATUS_402 = Status.UNKNOWN.withDescription("Payment Required");
@@ -120,6 +130,45 @@ public final class HttpUtil {
     }
   }
 
+  /**
+   * Returns a context with the deadline of a request, which {@link #getDeadline()} returns while it
+   * is attached.
+   *
+   * @param context the parent context.
+   * @param deadline the deadline.
+   * @return the context.
+   */
+  public static Context withDeadline(Context context, Deadline deadline) {
+    return context.withValue(DEADLINE_KEY, deadline);
+  }
+
+  /**
+   * Returns the deadline of the request being handled or sent, from the current context.
+   *
+   * @return the deadline, {@code null} if the request has none.
+   */
+  public static Deadline getDeadline() {
+    return DEADLINE_KEY.get();
+  }
+
+  /**
+   * Parses a {@link #TIMEOUT_HEADER} value into a deadline.
+   *
+   * @param timeoutMillis the header value, may be {@code null}.
+   * @return the deadline, {@code null} if the header is missing or invalid.
+   */
+  public static Deadline parseTimeout(String timeoutMillis) {
+    if (timeoutMillis == null) {
+      return null;
+    }
+    try {
+      return Deadline.after(
+          Math.max(0, Long.parseLong(timeoutMillis.trim())), TimeUnit.MILLISECONDS);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
   public static Map<String, String> splitQuery(URI uri) throws UnsupportedEncodingException {
     Map<String, String> query_pairs = new LinkedHashMap<String, String>();
     String query = uri.getQuery();
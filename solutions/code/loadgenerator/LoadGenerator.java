@@ -6,58 +6,362 @@ import httpclient.HttpClient;
 import httpclient.HttpResult;
 import httputil.HttpUtil;
 import io.github.cdimascio.dotenv.Dotenv;
+import io.github.cdimascio.dotenv.DotenvEntry;
+import io.grpc.Context;
+import io.grpc.Deadline;
 import io.opentelemetry.OpenTelemetry;
 import io.opentelemetry.context.Scope;
 import io.opentelemetry.trace.Span;
 import io.opentelemetry.trace.Span.Kind;
 import io.opentelemetry.trace.Tracer;
 import io.opentelemetry.trace.TracingContextUtils;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import loadgenerator.LoadProfile.Phase;
 import otelutil.OtelUtil;
 
 public final class LoadGenerator implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
   private static final Tracer tracer =
       OpenTelemetry.getTracerProvider().get(LoadGenerator.class.getName());
-  private static final String[] operations = {
-    "action=increment", "action=decrement", "action=get", "action=set"
-  };
 
+  private static final long TIMER_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  private static final String[] FINITE_MODES = {"profile", "search", "replay", "coordinator"};
+
+  private final Map<String, String> config = new TreeMap<>();
+  private final String reportFile;
+  private final String baselineFile;
+  private final double maxThroughputDrop;
+  private final double maxP99Increase;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private volatile boolean regressed;
+  private final LatencyRecorder latencyRecorder;
+  private final HttpClient httpClient;
+  private final ScheduledExecutorService reporter;
   private final Timer timer;
+  private final OpenLoopDriver openLoopDriver;
+  private final ClosedLoopDriver closedLoopDriver;
+  private final SaturationSearch saturationSearch;
+  private final TrafficReplay trafficReplay;
+  private final Coordinator coordinator;
+  private final Worker worker;
 
-  private LoadGenerator() {
+  private LoadGenerator() throws IOException {
     Dotenv dotenv = Dotenv.load();
     int frontendServerPort = Integer.parseInt(dotenv.get("FRONTEND_SERVER_PORT"));
-    timer = new Timer();
-    timer.schedule(
-        new RequestSender(frontendServerPort),
-        TimeUnit.SECONDS.toMillis(1),
-        TimeUnit.SECONDS.toMillis(1));
+    for (DotenvEntry entry : dotenv.entries()) {
+      if (entry.getKey().startsWith("LOAD_GENERATOR_")) {
+        config.put(entry.getKey(), entry.getValue());
+      }
+    }
+    String mode = dotenv.get("LOAD_GENERATOR_MODE", "timer");
+    // Workers send their results to the coordinator, which writes the report.
+    boolean isWorker = "worker".equals(mode);
+    reportFile = isWorker ? "" : dotenv.get("LOAD_GENERATOR_REPORT_FILE", "");
+    baselineFile = isWorker ? "" : dotenv.get("LOAD_GENERATOR_BASELINE_FILE", "");
+    // The other modes run until the process is stopped, when it can no longer exit with a status.
+    if (!baselineFile.isEmpty() && !Arrays.asList(FINITE_MODES).contains(mode)) {
+      throw new IllegalArgumentException(
+          "LOAD_GENERATOR_BASELINE_FILE needs a mode that ends on its own, one of "
+              + String.join(", ", FINITE_MODES)
+              + ", not "
+              + mode);
+    }
+    maxThroughputDrop = Double.parseDouble(dotenv.get("LOAD_GENERATOR_MAX_THROUGHPUT_DROP", "0.1"));
+    maxP99Increase = Double.parseDouble(dotenv.get("LOAD_GENERATOR_MAX_P99_INCREASE", "0.2"));
+    latencyRecorder = new LatencyRecorder();
+    // The nio engine sends requests from a single selector thread over persistent connections,
+    // the blocking engine uses one thread and connection per request in flight, the connection is
+    // kept open for the next request of the same thread.
+    boolean nio = "nio".equals(dotenv.get("LOAD_GENERATOR_ENGINE", "blocking"));
+    httpClient =
+        nio
+            ? new HttpClient(
+                frontendServerPort,
+                Integer.parseInt(dotenv.get("LOAD_GENERATOR_CONNECTIONS", "16")),
+                10_000,
+                0,
+                Integer.parseInt(dotenv.get("LOAD_GENERATOR_PIPELINE_DEPTH", "1")))
+            : new HttpClient(frontendServerPort, Integer.MAX_VALUE, 10_000, 0);
+    RequestSender requestSender =
+        new RequestSender(
+            httpClient,
+            nio,
+            OperationMix.parse(dotenv.get("LOAD_GENERATOR_MIX", "")),
+            KeyDistribution.parse(dotenv.get("LOAD_GENERATOR_KEYS", "")),
+            Long.parseLong(dotenv.get("LOAD_GENERATOR_TIMEOUT_MILLIS", "0")),
+            latencyRecorder);
+    if ("open".equals(mode) || "profile".equals(mode)) {
+      // Send requests at the profile's arrival rate, independent of the response time.
+      LoadProfile profile =
+          "profile".equals(mode)
+              ? LoadProfile.parse(Paths.get(dotenv.get("LOAD_GENERATOR_PROFILE")))
+              : LoadProfile.constant(Double.parseDouble(dotenv.get("LOAD_GENERATOR_RATE", "100")));
+      timer = null;
+      closedLoopDriver = null;
+      saturationSearch = null;
+      trafficReplay = null;
+      coordinator = null;
+      worker = null;
+      openLoopDriver =
+          new OpenLoopDriver(
+              requestSender::send,
+              profile,
+              Integer.parseInt(dotenv.get("LOAD_GENERATOR_THREADS", "64")));
+      openLoopDriver.start();
+    } else if ("closed".equals(mode)) {
+      // Each virtual user waits for its response and a think time before the next request.
+      timer = null;
+      openLoopDriver = null;
+      saturationSearch = null;
+      trafficReplay = null;
+      coordinator = null;
+      worker = null;
+      closedLoopDriver =
+          new ClosedLoopDriver(
+              requestSender::send,
+              Integer.parseInt(dotenv.get("LOAD_GENERATOR_USERS", "100")),
+              Long.parseLong(dotenv.get("LOAD_GENERATOR_THINK_TIME_MILLIS", "1000")));
+      closedLoopDriver.start();
+    } else if ("search".equals(mode)) {
+      // Bisect the highest request rate that stays within the latency and error objective.
+      timer = null;
+      openLoopDriver = null;
+      closedLoopDriver = null;
+      trafficReplay = null;
+      coordinator = null;
+      worker = null;
+      saturationSearch =
+          new SaturationSearch(
+              requestSender::send,
+              latencyRecorder,
+              Integer.parseInt(dotenv.get("LOAD_GENERATOR_THREADS", "64")),
+              Double.parseDouble(dotenv.get("LOAD_GENERATOR_SEARCH_MIN_RATE", "10")),
+              Double.parseDouble(dotenv.get("LOAD_GENERATOR_SEARCH_MAX_RATE", "10000")),
+              Double.parseDouble(dotenv.get("LOAD_GENERATOR_SEARCH_PRECISION", "0.05")),
+              TimeUnit.SECONDS.toNanos(
+                  Long.parseLong(dotenv.get("LOAD_GENERATOR_SEARCH_WARMUP_SECONDS", "10"))),
+              TimeUnit.SECONDS.toNanos(
+                  Long.parseLong(dotenv.get("LOAD_GENERATOR_SEARCH_PROBE_SECONDS", "30"))),
+              TimeUnit.SECONDS.toNanos(
+                  Long.parseLong(dotenv.get("LOAD_GENERATOR_SEARCH_COOLDOWN_SECONDS", "5"))),
+              TimeUnit.MILLISECONDS.toMicros(
+                  Long.parseLong(dotenv.get("LOAD_GENERATOR_SLO_P99_MILLIS", "100"))),
+              Double.parseDouble(dotenv.get("LOAD_GENERATOR_SLO_ERROR_RATE", "0.01")));
+    } else if ("replay".equals(mode)) {
+      // Re-issue the captured requests of a server with their original inter-arrival times.
+      timer = null;
+      openLoopDriver = null;
+      closedLoopDriver = null;
+      saturationSearch = null;
+      coordinator = null;
+      worker = null;
+      trafficReplay =
+          new TrafficReplay(
+              requestSender::replay,
+              Paths.get(dotenv.get("LOAD_GENERATOR_REPLAY_FILE")),
+              Double.parseDouble(dotenv.get("LOAD_GENERATOR_REPLAY_SPEED", "1")),
+              Integer.parseInt(dotenv.get("LOAD_GENERATOR_THREADS", "64")));
+      trafficReplay.start();
+    } else if ("coordinator".equals(mode)) {
+      // Split the profile between the worker processes and merge their results.
+      timer = null;
+      openLoopDriver = null;
+      closedLoopDriver = null;
+      saturationSearch = null;
+      trafficReplay = null;
+      worker = null;
+      String[] address = dotenv.get("LOAD_GENERATOR_COORDINATOR", "localhost:50010").split(":");
+      coordinator =
+          new Coordinator(
+              latencyRecorder,
+              Integer.parseInt(address[address.length - 1]),
+              Integer.parseInt(dotenv.get("LOAD_GENERATOR_WORKERS", "2")),
+              Paths.get(dotenv.get("LOAD_GENERATOR_PROFILE")));
+    } else if (isWorker) {
+      // Run a share of the coordinator's profile and send back the results.
+      timer = null;
+      openLoopDriver = null;
+      closedLoopDriver = null;
+      saturationSearch = null;
+      trafficReplay = null;
+      coordinator = null;
+      String[] address = dotenv.get("LOAD_GENERATOR_COORDINATOR", "localhost:50010").split(":");
+      worker =
+          new Worker(
+              requestSender::send,
+              latencyRecorder,
+              address[0],
+              Integer.parseInt(address[1]),
+              Integer.parseInt(dotenv.get("LOAD_GENERATOR_THREADS", "64")));
+    } else {
+      timer = new Timer();
+      openLoopDriver = null;
+      closedLoopDriver = null;
+      saturationSearch = null;
+      trafficReplay = null;
+      coordinator = null;
+      worker = null;
+      timer.schedule(requestSender, TIMER_PERIOD_MILLIS, TIMER_PERIOD_MILLIS);
+    }
+    long reportIntervalSeconds =
+        Long.parseLong(dotenv.get("LOAD_GENERATOR_REPORT_INTERVAL_SECONDS", "10"));
+    reporter = Executors.newSingleThreadScheduledExecutor();
+    reporter.scheduleAtFixedRate(
+        latencyRecorder::printIntervalSummary,
+        reportIntervalSeconds,
+        reportIntervalSeconds,
+        TimeUnit.SECONDS);
+  }
+
+  /**
+   * Waits until the load profile, the saturation search, the replay or the coordinated run has been
+   * run.
+   *
+   * @return {@code true} if a load profile, the search, the replay or the coordinated run was run
+   *     to its end, {@code false} if the generator was closed first or runs until it is closed.
+   */
+  private boolean awaitCompletion() throws IOException, InterruptedException {
+    if (saturationSearch != null) {
+      return saturationSearch.run();
+    }
+    if (trafficReplay != null) {
+      return trafficReplay.awaitCompletion();
+    }
+    if (coordinator != null) {
+      return coordinator.run();
+    }
+    if (worker != null) {
+      return worker.run();
+    }
+    return openLoopDriver != null && openLoopDriver.awaitCompletion();
   }
 
   @Override
   public void close() {
-    timer.cancel();
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    if (timer != null) {
+      timer.cancel();
+    }
+    if (openLoopDriver != null) {
+      openLoopDriver.close();
+    }
+    if (closedLoopDriver != null) {
+      closedLoopDriver.close();
+    }
+    if (saturationSearch != null) {
+      saturationSearch.close();
+    }
+    if (trafficReplay != null) {
+      trafficReplay.close();
+    }
+    if (coordinator != null) {
+      coordinator.close();
+    }
+    if (worker != null) {
+      worker.close();
+    }
+    httpClient.close();
+    reporter.shutdownNow();
+    latencyRecorder.printTotalSummary();
+    try {
+      writeReport();
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Could not write the run report", e);
+      regressed = true;
+    }
+  }
+
+  // Writes the JSON and CSV report and compares it with the baseline.
+  private void writeReport() throws IOException {
+    if (reportFile.isEmpty() && baselineFile.isEmpty()) {
+      return;
+    }
+    RunReport report = new RunReport(config, latencyRecorder.getTotalResults());
+    if (!reportFile.isEmpty()) {
+      report.writeJson(Paths.get(reportFile + ".json"));
+      report.writeCsv(Paths.get(reportFile + ".csv"));
+      logger.info("Run report written to " + reportFile + ".json and " + reportFile + ".csv");
+    }
+    if (!baselineFile.isEmpty()) {
+      List<String> regressions =
+          report.findRegressions(
+              RunReport.readCsv(Paths.get(baselineFile)), maxThroughputDrop, maxP99Increase);
+      for (String regression : regressions) {
+        System.out.println("Regression: " + regression);
+      }
+      regressed = !regressions.isEmpty();
+      if (!regressed) {
+        System.out.println("No regression against " + baselineFile);
+      }
+    }
   }
 
   private static final class RequestSender extends TimerTask {
     private final HttpClient httpClient;
+    private final boolean async;
     private final AtomicInteger requestCount;
-    private final Random random;
+    private final OperationMix operationMix;
+    private final KeyDistribution keyDistribution;
+    private final long timeoutNanos;
+    private final LatencyRecorder latencyRecorder;
 
-    private RequestSender(int frontendServerPort) {
-      this.httpClient = new HttpClient(frontendServerPort);
+    private RequestSender(
+        HttpClient httpClient,
+        boolean async,
+        OperationMix operationMix,
+        KeyDistribution keyDistribution,
+        long timeoutMillis,
+        LatencyRecorder latencyRecorder) {
+      this.httpClient = httpClient;
+      this.async = async;
       requestCount = new AtomicInteger();
-      random = new Random();
+      this.operationMix = operationMix;
+      this.keyDistribution = keyDistribution;
+      this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      this.latencyRecorder = latencyRecorder;
     }
 
     @Override
     public void run() {
+      // The timer waits for each request, so back-fill the requests a slow response held up.
+      send(Phase.RUN, System.nanoTime(), TimeUnit.MILLISECONDS.toMicros(TIMER_PERIOD_MILLIS))
+          .join();
+    }
+
+    private CompletableFuture<Void> send(long intendedStartNanos, Phase phase) {
+      return send(phase, intendedStartNanos, 0);
+    }
+
+    private CompletableFuture<Void> send(
+        Phase phase, long intendedStartNanos, long expectedIntervalMicros) {
+      // Many threads send requests, avoid contending on a shared Random.
+      Random random = ThreadLocalRandom.current();
+      String action = operationMix.next(random);
+      String operation = "action=" + action;
+      if (keyDistribution != null) {
+        operation += "&key=" + keyDistribution.next(random);
+      }
+
       int currentRequest = requestCount.getAndAdd(1);
-      String operation = operations[Math.floorMod(random.nextInt(), operations.length)];
       Span span =
           tracer
               .spanBuilder(operation)
@@ -65,11 +369,67 @@ public final class LoadGenerator implements AutoCloseable {
               .setSpanKind(Kind.INTERNAL)
               .setAttribute("request_count", currentRequest)
               .startSpan();
+      CompletableFuture<HttpResult> response;
       try (Scope ignored = TracingContextUtils.currentContextWith(span)) {
-        HttpResult result = httpClient.sendGet(FRONTEND_PATH + "?" + operation);
-        span.setStatus(HttpUtil.parseResponseStatus(result.getHttpResponseCode(), null));
+        response = sendGet(FRONTEND_PATH + "?" + operation, intendedStartNanos);
+      }
+      return response.thenAccept(
+          result -> {
+            span.setStatus(HttpUtil.parseResponseStatus(result.getHttpResponseCode(), null));
+            span.end();
+            latencyRecorder.record(
+                phase,
+                action,
+                result.getHttpResponseCode(),
+                intendedStartNanos,
+                expectedIntervalMicros);
+          });
+    }
+
+    private CompletableFuture<Void> replay(String target, long intendedStartNanos) {
+      // Record captured requests by their action, or by their path if they have none.
+      int queryIndex = target.indexOf('?');
+      String operation = queryIndex < 0 ? target : target.substring(0, queryIndex);
+      if (queryIndex >= 0) {
+        for (String parameter : target.substring(queryIndex + 1).split("&")) {
+          if (parameter.startsWith("action=")) {
+            operation = parameter.substring("action=".length());
+          }
+        }
+      }
+      String recordedOperation = operation;
+
+      return sendGet(target, intendedStartNanos)
+          .thenAccept(
+              result ->
+                  latencyRecorder.record(
+                      Phase.RUN,
+                      recordedOperation,
+                      result.getHttpResponseCode(),
+                      intendedStartNanos,
+                      0));
+    }
+
+    // Completes on the selector thread or at the deadline with the nio engine, before returning
+    // otherwise.
+    private CompletableFuture<HttpResult> sendGet(String target, long intendedStartNanos) {
+      Context context = Context.current();
+      if (timeoutNanos > 0) {
+        // The budget starts at the intended start, a request sent late has less time left.
+        context =
+            HttpUtil.withDeadline(
+                context,
+                Deadline.after(
+                    timeoutNanos - (System.nanoTime() - intendedStartNanos), TimeUnit.NANOSECONDS));
+      }
+      Context previous = context.attach();
+      try {
+        if (async) {
+          return httpClient.sendGetAsync(target);
+        }
+        return CompletableFuture.completedFuture(httpClient.sendGet(target));
       } finally {
-        span.end();
+        context.detach(previous);
       }
     }
   }
@@ -78,12 +438,21 @@ public final class LoadGenerator implements AutoCloseable {
    * Main method to run the example.
    *
    * @param args It is not required.
+   * @throws IOException Something might go wrong.
+   * @throws InterruptedException Something might go wrong.
    */
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException, InterruptedException {
     OtelUtil.setupTraceExporter();
     final LoadGenerator loadGenerator = new LoadGenerator();
 
     // Gracefully close the servers
     Runtime.getRuntime().addShutdownHook(new Thread(loadGenerator::close));
+
+    // A load profile, search, replay or coordinated run ends on its own: print the results and exit
+    // once it is over, with a non-zero status if the run regressed against the baseline.
+    if (loadGenerator.awaitCompletion()) {
+      loadGenerator.close();
+      System.exit(loadGenerator.regressed ? 1 : 0);
+    }
   }
 }
@@ -0,0 +1,294 @@
+package httpclient;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The persistent connections of an {@link HttpClient} to its server.
+ *
+ * <p>At most {@code maxConnections} connections are leased at once, a thread that finds them all
+ * leased waits up to the acquire timeout for one to be released. Released connections are kept idle
+ * and reused most recently used first, so that the connections that are not needed stay idle and
+ * are closed after the idle timeout, before the server closes them.
+ */
+final class ConnectionPool implements AutoCloseable {
+  private final InetSocketAddress address;
+  private final int maxConnections;
+  private final long idleTimeoutNanos;
+  private final long acquireTimeoutNanos;
+  private final Semaphore permits;
+  private final Deque<Connection> idleConnections = new ConcurrentLinkedDeque<>();
+  private final ScheduledExecutorService evictor;
+  private final LongAdder created = new LongAdder();
+  private final LongAdder reused = new LongAdder();
+  private final LongAdder evicted = new LongAdder();
+  private final LongAdder acquireTimeouts = new LongAdder();
+  private volatile boolean closed;
+
+  /**
+   * Creates an empty pool.
+   *
+   * @param address the address of the server.
+   * @param maxConnections the most connections open at once.
+   * @param idleTimeoutNanos how long a connection stays idle before it is closed.
+   * @param acquireTimeoutNanos how long to wait for a connection when they are all leased.
+   */
+  ConnectionPool(
+      InetSocketAddress address,
+      int maxConnections,
+      long idleTimeoutNanos,
+      long acquireTimeoutNanos) {
+    this.address = address;
+    this.maxConnections = maxConnections;
+    this.idleTimeoutNanos = idleTimeoutNanos;
+    this.acquireTimeoutNanos = acquireTimeoutNanos;
+    this.permits = new Semaphore(maxConnections, true);
+    long evictionPeriodNanos = Math.max(idleTimeoutNanos / 2, TimeUnit.MILLISECONDS.toNanos(100));
+    evictor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "http-client-" + address.getPort() + "-evictor");
+              thread.setDaemon(true);
+              return thread;
+            });
+    evictor.scheduleWithFixedDelay(
+        this::evictIdleConnections, evictionPeriodNanos, evictionPeriodNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Leases an idle connection, or opens a new one.
+   *
+   * @param maxWaitNanos the longest time to wait for a connection, within the acquire timeout.
+   * @param connectTimeoutMillis the connect timeout of a new connection, {@code 0} for none.
+   * @return the connection, to pass to {@link #release(Connection, boolean)}.
+   * @throws AcquireTimeoutException if all the connections stayed leased.
+   * @throws IOException if the connection cannot be opened.
+   */
+  Connection acquire(long maxWaitNanos, int connectTimeoutMillis) throws IOException {
+    if (closed) {
+      throw new IOException("The connection pool is closed");
+    }
+    try {
+      if (!permits.tryAcquire(Math.min(maxWaitNanos, acquireTimeoutNanos), TimeUnit.NANOSECONDS)) {
+        acquireTimeouts.increment();
+        throw new AcquireTimeoutException(maxConnections);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a connection", e);
+    }
+    long nowNanos = System.nanoTime();
+    Connection connection;
+    while ((connection = idleConnections.pollFirst()) != null) {
+      if (nowNanos - connection.lastUsedNanos < idleTimeoutNanos) {
+        reused.increment();
+        connection.reused = true;
+        return connection;
+      }
+      evicted.increment();
+      connection.close();
+    }
+    try {
+      connection = new Connection(address, connectTimeoutMillis);
+    } catch (IOException e) {
+      permits.release();
+      throw e;
+    }
+    created.increment();
+    return connection;
+  }
+
+  /**
+   * Returns a leased connection to the pool, or closes it.
+   *
+   * @param connection the connection.
+   * @param reusable whether the connection can send another request, its response was read whole
+   *     and the server keeps it open.
+   */
+  void release(Connection connection, boolean reusable) {
+    if (reusable && !closed) {
+      connection.lastUsedNanos = System.nanoTime();
+      idleConnections.offerFirst(connection);
+    } else {
+      connection.close();
+    }
+    permits.release();
+  }
+
+  // Closes the connections idle for longer than the timeout, the least recently used are last.
+  private void evictIdleConnections() {
+    long nowNanos = System.nanoTime();
+    Iterator<Connection> connections = idleConnections.descendingIterator();
+    while (connections.hasNext()) {
+      Connection connection = connections.next();
+      if (nowNanos - connection.lastUsedNanos < idleTimeoutNanos) {
+        break;
+      }
+      // Unless a request leased it meanwhile.
+      if (idleConnections.removeFirstOccurrence(connection)) {
+        evicted.increment();
+        connection.close();
+      }
+    }
+  }
+
+  /** Closes the idle connections, the leased ones are closed when they are released. */
+  @Override
+  public void close() {
+    closed = true;
+    evictor.shutdownNow();
+    Connection connection;
+    while ((connection = idleConnections.pollFirst()) != null) {
+      connection.close();
+    }
+  }
+
+  /**
+   * Appends the metrics of the pool in the Prometheus text format.
+   *
+   * @param builder the builder to append to.
+   */
+  void appendTo(StringBuilder builder) {
+    String server = "server=\"" + address.getHostString() + ":" + address.getPort() + "\"";
+    int idle = idleConnections.size();
+    int leased = maxConnections - permits.availablePermits();
+    builder
+        .append("# HELP http_client_pool_connections Open connections by state.\n")
+        .append("# TYPE http_client_pool_connections gauge\n")
+        .append("http_client_pool_connections{")
+        .append(server)
+        .append(",state=\"leased\"} ")
+        .append(leased)
+        .append('\n')
+        .append("http_client_pool_connections{")
+        .append(server)
+        .append(",state=\"idle\"} ")
+        .append(idle)
+        .append('\n')
+        .append("# HELP http_client_pool_max_connections The most connections open at once.\n")
+        .append("# TYPE http_client_pool_max_connections gauge\n")
+        .append("http_client_pool_max_connections{")
+        .append(server)
+        .append("} ")
+        .append(maxConnections)
+        .append('\n');
+    appendCounter(builder, "created", "Connections opened.", server, created.sum());
+    appendCounter(builder, "reused", "Requests sent on an idle connection.", server, reused.sum());
+    appendCounter(
+        builder, "evicted", "Connections closed after the idle timeout.", server, evicted.sum());
+    builder
+        .append(
+            "# HELP http_client_pool_acquire_timeouts_total Requests not sent because all"
+                + " connections stayed leased.\n")
+        .append("# TYPE http_client_pool_acquire_timeouts_total counter\n")
+        .append("http_client_pool_acquire_timeouts_total{")
+        .append(server)
+        .append("} ")
+        .append(acquireTimeouts.sum())
+        .append('\n');
+  }
+
+  private static void appendCounter(
+      StringBuilder builder, String event, String help, String server, long count) {
+    String name = "http_client_pool_connections_" + event + "_total";
+    builder
+        .append("# HELP ")
+        .append(name)
+        .append(' ')
+        .append(help)
+        .append('\n')
+        .append("# TYPE ")
+        .append(name)
+        .append(" counter\n")
+        .append(name)
+        .append('{')
+        .append(server)
+        .append("} ")
+        .append(count)
+        .append('\n');
+  }
+
+  /** Thrown when no connection was released within the acquire timeout. */
+  static final class AcquireTimeoutException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private AcquireTimeoutException(int maxConnections) {
+      super("All " + maxConnections + " connections stayed leased");
+    }
+  }
+
+  /** A connection to the server, used by one request at a time. */
+  static final class Connection {
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    // Only accessed by the thread that leased the connection, or while it is idle.
+    private long lastUsedNanos;
+    private boolean reused;
+
+    private Connection(InetSocketAddress address, int connectTimeoutMillis) throws IOException {
+      socket = new Socket();
+      try {
+        // The requests are small and written at once, do not wait for delayed ACKs.
+        socket.setTcpNoDelay(true);
+        socket.connect(address, connectTimeoutMillis);
+        input = new BufferedInputStream(socket.getInputStream());
+        output = socket.getOutputStream();
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+    }
+
+    InputStream getInput() {
+      return input;
+    }
+
+    OutputStream getOutput() {
+      return output;
+    }
+
+    /** Sets the read timeout, {@code 0} for none. */
+    void setReadTimeout(int timeoutMillis) throws IOException {
+      socket.setSoTimeout(timeoutMillis);
+    }
+
+    /**
+     * Waits for the first byte of the response, without consuming it.
+     *
+     * @return {@code false} if the server closed the connection before sending any byte.
+     * @throws IOException if the connection fails, or the read timeout elapses.
+     */
+    boolean awaitResponse() throws IOException {
+      input.mark(1);
+      int b = input.read();
+      input.reset();
+      return b >= 0;
+    }
+
+    /** Returns whether the connection was idle in the pool, the server may have closed it since. */
+    boolean isReused() {
+      return reused;
+    }
+
+    private void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing to release beyond the socket.
+      }
+    }
+  }
+}
@@ -0,0 +1,537 @@
+package httpclient;
+
+import httputil.HttpUtil;
+import io.grpc.Deadline;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking HTTP/1.1 client that sends GET requests over a fixed number of persistent
+ * connections, all driven by a single selector thread.
+ *
+ * <p>Up to {@code pipelineDepth} requests are written to a connection before its first response
+ * arrives (HTTP pipelining), a depth of 1 waits for each response before sending the next request.
+ * Requests that find every connection at its depth are queued. Like {@link HttpClient}, a request
+ * that receives no response completes with status code 0.
+ */
+public final class NioHttpClient implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(NioHttpClient.class.getName());
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+  private final InetSocketAddress address;
+  private final int pipelineDepth;
+  private final Selector selector;
+  private final Connection[] connections;
+  private final Queue<Request> submitted = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
+  private final Thread selectorThread;
+  private volatile boolean closed;
+  // Only accessed by the selector thread.
+  private final Queue<Request> waiting = new ArrayDeque<>();
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+  /**
+   * Creates a client for a local server. Connections are opened when the first requests are sent.
+   *
+   * @param port the port of the server.
+   * @param connections the number of persistent connections.
+   * @param pipelineDepth the number of requests sent on a connection without waiting for their
+   *     responses.
+   * @throws IOException if the selector cannot be opened.
+   */
+  public NioHttpClient(int port, int connections, int pipelineDepth) throws IOException {
+    if (connections <= 0 || pipelineDepth <= 0) {
+      throw new IllegalArgumentException("connections and pipelineDepth must be positive");
+    }
+    this.address = new InetSocketAddress("127.0.0.1", port);
+    this.pipelineDepth = pipelineDepth;
+    this.selector = Selector.open();
+    this.connections = new Connection[connections];
+    for (int i = 0; i < connections; i++) {
+      this.connections[i] = new Connection();
+    }
+    this.selectorThread = new Thread(this::run, "nio-http-client");
+    selectorThread.start();
+    logger.info(
+        "Client connect to: http://127.0.0.1:"
+            + port
+            + " ("
+            + connections
+            + " connections, pipeline depth "
+            + pipelineDepth
+            + ")");
+  }
+
+  /**
+   * Sends a GET request, with the time left until the deadline of the current context in the {@link
+   * HttpUtil#TIMEOUT_HEADER} header. Once the deadline has passed, the request is not sent and the
+   * result is 504 Gateway Timeout.
+   *
+   * @param path the path and query of the request.
+   * @return the result, completed by the selector thread.
+   */
+  public CompletableFuture<HttpResult> sendGet(String path) {
+    return sendGet(path, Collections.emptyMap());
+  }
+
+  /**
+   * Sends a GET request with additional headers, such as the context of the current span, and the
+   * time left until the deadline of the current context like {@link #sendGet(String)}.
+   *
+   * @param path the path and query of the request.
+   * @param headers the additional headers of the request.
+   * @return the result, completed by the selector thread.
+   */
+  public CompletableFuture<HttpResult> sendGet(String path, Map<String, String> headers) {
+    StringBuilder request =
+        new StringBuilder("GET ")
+            .append(path)
+            .append(" HTTP/1.1\r\nHost: ")
+            .append(address.getHostString())
+            .append(':')
+            .append(address.getPort())
+            .append("\r\n");
+    Deadline deadline = HttpUtil.getDeadline();
+    if (deadline != null) {
+      long timeoutMillis = deadline.timeRemaining(TimeUnit.MILLISECONDS);
+      if (timeoutMillis <= 0) {
+        return CompletableFuture.completedFuture(new HttpResult(504, "Gateway Timeout"));
+      }
+      request.append(HttpUtil.TIMEOUT_HEADER).append(": ").append(timeoutMillis).append("\r\n");
+    }
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    return submit(
+        new Request(request.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1)));
+  }
+
+  private CompletableFuture<HttpResult> submit(Request request) {
+    submitted.add(request);
+    if (closed) {
+      failSubmitted();
+    } else if (wakeupPending.compareAndSet(false, true)) {
+      selector.wakeup();
+    }
+    return request.future;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+    try {
+      selectorThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    failSubmitted();
+  }
+
+  private void failSubmitted() {
+    Request request;
+    while ((request = submitted.poll()) != null) {
+      request.fail();
+    }
+  }
+
+  private void run() {
+    try {
+      while (!closed) {
+        selector.select();
+        wakeupPending.set(false);
+        Request request;
+        while ((request = submitted.poll()) != null) {
+          waiting.add(request);
+        }
+        for (SelectionKey key : selector.selectedKeys()) {
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isValid() && key.isConnectable()) {
+              connection.finishConnect();
+            }
+            if (key.isValid() && key.isReadable()) {
+              connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.write();
+            }
+          } catch (IOException | RuntimeException e) {
+            logger.info(e.getMessage());
+            connection.close(false);
+          }
+        }
+        selector.selectedKeys().clear();
+        dispatchWaiting();
+      }
+    } catch (IOException e) {
+      logger.info(e.getMessage());
+    } finally {
+      for (Connection connection : connections) {
+        connection.close(false);
+      }
+      for (Request request : waiting) {
+        request.fail();
+      }
+      waiting.clear();
+      try {
+        selector.close();
+      } catch (IOException e) {
+        logger.info(e.getMessage());
+      }
+    }
+  }
+
+  // Hands the waiting requests to the connections with the fewest outstanding requests.
+  private void dispatchWaiting() {
+    while (!waiting.isEmpty()) {
+      Connection best = null;
+      for (Connection connection : connections) {
+        if (connection.outstanding.size() < pipelineDepth
+            && (best == null || connection.outstanding.size() < best.outstanding.size())) {
+          best = connection;
+        }
+      }
+      if (best == null) {
+        return;
+      }
+      try {
+        best.send(waiting.poll());
+      } catch (IOException | RuntimeException e) {
+        // Fails the request with the others of the connection, it is outstanding from the start.
+        logger.info(e.getMessage());
+        best.close(false);
+      }
+    }
+  }
+
+  private static final class Request {
+    private final byte[] bytes;
+    private final CompletableFuture<HttpResult> future = new CompletableFuture<>();
+    // Whether the request was already sent again after its connection was closed.
+    private boolean resent;
+    // The offset of the request in the bytes sent on its connection.
+    private long offset;
+
+    private Request(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    private void fail() {
+      future.complete(new HttpResult(0, ""));
+    }
+  }
+
+  /** A persistent connection and the requests that were sent on it and await their response. */
+  private final class Connection {
+    private final Queue<Request> outstanding = new ArrayDeque<>();
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean connected;
+    // Written requests that were not sent yet, in write mode.
+    private ByteBuffer outbound = ByteBuffer.allocate(4096);
+    // Received bytes that were not parsed yet, in write mode.
+    private ByteBuffer inbound = ByteBuffer.allocate(4096);
+    // The response in progress has neither a length nor chunks and ends when the connection closes.
+    private int readUntilCloseStatus;
+    // The bytes appended to and written from the outbound buffer since the connection was opened.
+    private long queuedBytes;
+    private long writtenBytes;
+    // Whether a response was received on the connection.
+    private boolean responded;
+    // Whether requests were sent after the connection was idle and nothing was received since, so
+    // that the server may have closed it before reading them.
+    private boolean reusedAfterIdle;
+
+    private void send(Request request) throws IOException {
+      if (channel != null && responded && outstanding.isEmpty()) {
+        reusedAfterIdle = true;
+      }
+      outstanding.add(request);
+      if (channel == null) {
+        connect();
+      }
+      request.offset = queuedBytes;
+      queuedBytes += request.bytes.length;
+      outbound = append(outbound, request.bytes, 0, request.bytes.length);
+      if (connected) {
+        write();
+      }
+    }
+
+    private void connect() throws IOException {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      connected = channel.connect(address);
+      key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+      key.attach(this);
+    }
+
+    private void finishConnect() throws IOException {
+      connected = channel.finishConnect();
+      if (connected) {
+        write();
+      }
+    }
+
+    private void write() throws IOException {
+      outbound.flip();
+      writtenBytes += channel.write(outbound);
+      outbound.compact();
+      key.interestOps(
+          outbound.position() > 0
+              ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+              : SelectionKey.OP_READ);
+    }
+
+    private void read() throws IOException {
+      while (true) {
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+          if (readUntilCloseStatus != 0) {
+            complete(readUntilCloseStatus, inbound.array(), 0, inbound.position());
+            inbound.clear();
+          }
+          close(true);
+          return;
+        }
+        if (read == 0) {
+          return;
+        }
+        reusedAfterIdle = false;
+        readBuffer.flip();
+        inbound = append(inbound, readBuffer);
+        while (channel != null && parseResponse()) {
+          // Parse all complete responses, pipelined responses may arrive together.
+        }
+        if (channel == null) {
+          return;
+        }
+      }
+    }
+
+    // Completes the oldest outstanding request if a whole response was received.
+    private boolean parseResponse() throws IOException {
+      byte[] bytes = inbound.array();
+      int length = inbound.position();
+      int headerEnd = indexOf(bytes, 0, length, HEADER_END);
+      if (headerEnd < 0) {
+        return false;
+      }
+      String[] lines = new String(bytes, 0, headerEnd, StandardCharsets.ISO_8859_1).split("\r\n");
+      String[] statusLine = lines[0].split(" ");
+      if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/1.")) {
+        throw new IOException("Invalid status line: " + lines[0]);
+      }
+      int status = Integer.parseInt(statusLine[1]);
+      long contentLength = -1;
+      boolean chunked = false;
+      boolean close = false;
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon < 0) {
+          continue;
+        }
+        String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+        String value = lines[i].substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+        if ("content-length".equals(name)) {
+          contentLength = Long.parseLong(value);
+        } else if ("transfer-encoding".equals(name)) {
+          chunked = value.endsWith("chunked");
+        } else if ("connection".equals(name)) {
+          close = "close".equals(value);
+        }
+      }
+      int bodyStart = headerEnd + HEADER_END.length;
+      if (status / 100 == 1) {
+        // An interim response, the final response follows.
+        consume(bodyStart);
+        return true;
+      }
+      int end;
+      if (status == 204 || status == 304) {
+        complete(status, bytes, bodyStart, 0);
+        end = bodyStart;
+      } else if (chunked) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        end = decodeChunks(bytes, bodyStart, length, body);
+        if (end < 0) {
+          return false;
+        }
+        complete(status, body.toByteArray(), 0, body.size());
+      } else if (contentLength >= 0) {
+        if (length - bodyStart < contentLength) {
+          return false;
+        }
+        end = bodyStart + (int) contentLength;
+        complete(status, bytes, bodyStart, (int) contentLength);
+      } else {
+        readUntilCloseStatus = status;
+        consume(bodyStart);
+        return false;
+      }
+      consume(end);
+      if (close) {
+        close(true);
+      }
+      return true;
+    }
+
+    private void complete(int status, byte[] body, int offset, int length) throws IOException {
+      Request request = outstanding.poll();
+      if (request == null) {
+        throw new IOException("Unexpected response " + status);
+      }
+      responded = true;
+      request.future.complete(
+          new HttpResult(status, new String(body, offset, length, StandardCharsets.UTF_8)));
+    }
+
+    private void consume(int count) {
+      inbound.flip();
+      inbound.position(count);
+      inbound.compact();
+    }
+
+    /**
+     * Closes the connection, which is opened again by the next request sent on it.
+     *
+     * @param resend whether to send the outstanding requests again on another connection, at most
+     *     once per request, used when the server closed an idle or pipelined connection. Only the
+     *     requests the server cannot have processed are sent again: those not written yet, or all
+     *     of them if the server closed the connection while it was idle, before sending anything
+     *     after the requests that reused it. The others fail, as they may have changed state.
+     */
+    private void close(boolean resend) {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          logger.info(e.getMessage());
+        }
+      }
+      channel = null;
+      key = null;
+      connected = false;
+      outbound.clear();
+      inbound.clear();
+      readUntilCloseStatus = 0;
+      Request request;
+      while ((request = outstanding.poll()) != null) {
+        if (resend
+            && !request.resent
+            && !closed
+            && (reusedAfterIdle || request.offset >= writtenBytes)) {
+          request.resent = true;
+          waiting.add(request);
+        } else {
+          request.fail();
+        }
+      }
+      queuedBytes = 0;
+      writtenBytes = 0;
+      responded = false;
+      reusedAfterIdle = false;
+    }
+  }
+
+  // Returns the end of the chunked body starting at offset, or -1 if it is incomplete.
+  private static int decodeChunks(byte[] bytes, int offset, int length, ByteArrayOutputStream body)
+      throws IOException {
+    int position = offset;
+    while (true) {
+      int lineEnd = indexOf(bytes, position, length, CRLF);
+      if (lineEnd < 0) {
+        return -1;
+      }
+      String sizeLine = new String(bytes, position, lineEnd - position, StandardCharsets.US_ASCII);
+      int extension = sizeLine.indexOf(';');
+      int size;
+      try {
+        size =
+            Integer.parseInt(
+                (extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid chunk size: " + sizeLine, e);
+      }
+      position = lineEnd + CRLF.length;
+      if (size == 0) {
+        // Skip the trailer, which ends with an empty line.
+        while (true) {
+          int trailerEnd = indexOf(bytes, position, length, CRLF);
+          if (trailerEnd < 0) {
+            return -1;
+          }
+          boolean empty = trailerEnd == position;
+          position = trailerEnd + CRLF.length;
+          if (empty) {
+            return position;
+          }
+        }
+      }
+      if (length - position < size + CRLF.length) {
+        return -1;
+      }
+      body.write(bytes, position, size);
+      position += size + CRLF.length;
+    }
+  }
+
+  // Returns the index of the first occurrence of pattern in bytes[from, to), or -1.
+  private static int indexOf(byte[] bytes, int from, int to, byte[] pattern) {
+    outer:
+    for (int i = from; i <= to - pattern.length; i++) {
+      for (int j = 0; j < pattern.length; j++) {
+        if (bytes[i + j] != pattern[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static ByteBuffer append(ByteBuffer buffer, ByteBuffer source) {
+    buffer = ensureRemaining(buffer, source.remaining());
+    buffer.put(source);
+    return buffer;
+  }
+
+  private static ByteBuffer append(ByteBuffer buffer, byte[] source, int offset, int length) {
+    buffer = ensureRemaining(buffer, length);
+    buffer.put(source, offset, length);
+    return buffer;
+  }
+
+  private static ByteBuffer ensureRemaining(ByteBuffer buffer, int remaining) {
+    if (buffer.remaining() >= remaining) {
+      return buffer;
+    }
+    ByteBuffer grown =
+        ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + remaining));
+    buffer.flip();
+    grown.put(buffer);
+    return grown;
+  }
+}
@@ -0,0 +1,283 @@
+package httpserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Writes a line per request to a file that is rotated by size, without ever blocking the request
+ * threads on the disk.
+ *
+ * <p>The request threads record their entries into a preallocated ring buffer, claiming a slot with
+ * a single compare-and-set. A background thread drains the buffer in batches, each written with one
+ * call. If the buffer is full because the disk falls behind, the entries are dropped and counted.
+ *
+ * <p>Each line holds the completion time, method, path, status code, response body bytes and
+ * latency in milliseconds, separated by spaces.
+ */
+final class AccessLog implements ServerMetrics.Source, AutoCloseable {
+  private static final Logger logger = Logger.getLogger(AccessLog.class.getName());
+  private static final int CAPACITY = 16 * 1024;
+  private static final int MASK = CAPACITY - 1;
+  private static final int MAX_BATCH = 1024;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+  private final Path file;
+  private final long maxFileBytes;
+  private final int maxFiles;
+  // The slots of the ring buffer. A slot's sequence equals the position that may claim it, and the
+  // position plus one once its entry is written, until the writer thread frees it for the next lap.
+  private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+  private final long[] completedMillis = new long[CAPACITY];
+  private final String[] methods = new String[CAPACITY];
+  private final String[] paths = new String[CAPACITY];
+  private final int[] statusCodes = new int[CAPACITY];
+  private final long[] bodyBytes = new long[CAPACITY];
+  private final long[] latencyNanos = new long[CAPACITY];
+  private final AtomicLong claimed = new AtomicLong();
+  private final LongAdder dropped = new LongAdder();
+  private final Thread writerThread;
+  private volatile boolean closed;
+  // Only accessed by the writer thread.
+  private long drained;
+  private FileChannel channel;
+  private long fileBytes;
+  private final StringBuilder batch = new StringBuilder(MAX_BATCH * 96);
+
+  /**
+   * Opens the log, appending to the file if it exists.
+   *
+   * @param file the file of the log, rotated to {@code <file>.1}, {@code <file>.2} and so on.
+   * @param maxFileBytes the size at which the file is rotated.
+   * @param maxFiles the number of rotated files kept.
+   * @param threadName the name of the writer thread.
+   * @throws IOException if the file cannot be opened.
+   */
+  AccessLog(Path file, long maxFileBytes, int maxFiles, String threadName) throws IOException {
+    this.file = file;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFiles = maxFiles;
+    for (int i = 0; i < CAPACITY; i++) {
+      sequences.set(i, i);
+    }
+    open();
+    writerThread = new Thread(this::run, threadName);
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Records a completed request, or drops it if the buffer is full.
+   *
+   * @param method the request method.
+   * @param path the request path.
+   * @param statusCode the response status code.
+   * @param bytes the bytes of the response body.
+   * @param latencyNanos the time taken to handle the request.
+   */
+  void append(String method, String path, int statusCode, long bytes, long latencyNanos) {
+    long position = claimed.get();
+    while (true) {
+      int slot = (int) (position & MASK);
+      long available = sequences.get(slot) - position;
+      if (available == 0) {
+        if (claimed.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = claimed.get();
+      } else if (available < 0) {
+        // The writer thread has not freed the slot of the previous lap yet.
+        dropped.increment();
+        return;
+      } else {
+        position = claimed.get();
+      }
+    }
+    int slot = (int) (position & MASK);
+    completedMillis[slot] = System.currentTimeMillis();
+    methods[slot] = method;
+    paths[slot] = path;
+    statusCodes[slot] = statusCode;
+    bodyBytes[slot] = bytes;
+    this.latencyNanos[slot] = latencyNanos;
+    // Publishes the entry to the writer thread.
+    sequences.lazySet(slot, position + 1);
+  }
+
+  private void run() {
+    while (true) {
+      boolean wasClosed = closed;
+      int count = drain();
+      if (count > 0) {
+        write();
+      } else if (wasClosed) {
+        break;
+      } else {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.info(e.getMessage());
+    }
+  }
+
+  // Formats the published entries into the batch, up to the batch size.
+  private int drain() {
+    int count = 0;
+    while (count < MAX_BATCH) {
+      int slot = (int) (drained & MASK);
+      if (sequences.get(slot) != drained + 1) {
+        break;
+      }
+      DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(completedMillis[slot]), batch);
+      batch
+          .append(' ')
+          .append(methods[slot])
+          .append(' ')
+          .append(paths[slot])
+          .append(' ')
+          .append(statusCodes[slot])
+          .append(' ')
+          .append(bodyBytes[slot])
+          .append(' ');
+      appendMillis(latencyNanos[slot]);
+      batch.append('\n');
+      methods[slot] = null;
+      paths[slot] = null;
+      // Frees the slot for the next lap.
+      sequences.lazySet(slot, drained + CAPACITY);
+      drained++;
+      count++;
+    }
+    return count;
+  }
+
+  // Appends the nanoseconds as milliseconds with 3 decimals, without the cost of String.format.
+  private void appendMillis(long nanos) {
+    long micros = nanos / 1000;
+    int fraction = (int) (micros % 1000);
+    batch.append(micros / 1000).append('.');
+    if (fraction < 100) {
+      batch.append(fraction < 10 ? "00" : "0");
+    }
+    batch.append(fraction);
+  }
+
+  private void write() {
+    ByteBuffer bytes = StandardCharsets.UTF_8.encode(batch.toString());
+    batch.setLength(0);
+    try {
+      if (fileBytes > 0 && fileBytes + bytes.remaining() > maxFileBytes) {
+        rotate();
+      }
+      while (bytes.hasRemaining()) {
+        fileBytes += channel.write(bytes);
+      }
+    } catch (IOException e) {
+      logger.info(e.getMessage());
+    }
+  }
+
+  private void rotate() throws IOException {
+    channel.close();
+    if (maxFiles > 0) {
+      for (int i = maxFiles - 1; i >= 1; i--) {
+        Path rotated = rotatedFile(i);
+        if (Files.exists(rotated)) {
+          Files.move(rotated, rotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      Files.move(file, rotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(file);
+    }
+    open();
+  }
+
+  private Path rotatedFile(int index) {
+    return Paths.get(file.toString() + "." + index);
+  }
+
+  private void open() throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    fileBytes = channel.size();
+  }
+
+  /** Writes the recorded entries and closes the file. */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void appendTo(StringBuilder builder) {
+    builder
+        .append(
+            "# HELP http_server_access_log_dropped_total Access log entries dropped on a full"
+                + " buffer.\n")
+        .append("# TYPE http_server_access_log_dropped_total counter\n")
+        .append("http_server_access_log_dropped_total ")
+        .append(dropped.sum())
+        .append('\n');
+  }
+
+  /** Counts the bytes written to a response body. */
+  static final class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    /** Counts bytes of the response body sent without going through this stream. */
+    void addCount(long bytes) {
+      count += bytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      out.write(bytes, offset, length);
+      count += length;
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handles requests without blocking a server thread while the response is prepared.
+ *
+ * <p>The server sends the response from the thread that completes the returned future, so a handler
+ * that waits for other work should return a future completed by that work rather than wait for it.
+ */
+public interface AsyncHttpHandler {
+  /**
+   * Starts handling a request.
+   *
+   * @param httpExchange the exchange to read the request from, the server sends the response.
+   * @return completed with the response, or with {@code null} if the handler sent the response
+   *     itself. A failed future is answered with 500 Internal Server Error.
+   * @throws IOException if the request cannot be read.
+   */
+  CompletableFuture<HttpResponse> handle(HttpExchange httpExchange) throws IOException;
+}
@@ -0,0 +1,52 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Recycles the fixed-size buffers that connections read requests into and write responses from. */
+final class BufferPool {
+  static final int BUFFER_SIZE = 16 * 1024;
+
+  private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final int maxBuffers;
+
+  /**
+   * Creates an empty pool.
+   *
+   * @param maxBuffers how many released buffers the pool keeps at most.
+   */
+  BufferPool(int maxBuffers) {
+    this.maxBuffers = maxBuffers;
+  }
+
+  /** Returns a cleared buffer of {@link #BUFFER_SIZE} bytes, allocated if the pool is empty. */
+  ByteBuffer acquire() {
+    ByteBuffer buffer = buffers.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+    size.decrementAndGet();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool, it must not be used afterwards. Buffers of another size, and
+   * those over the size of the pool, are left to the garbage collector.
+   *
+   * @param buffer the buffer.
+   */
+  void release(ByteBuffer buffer) {
+    if (buffer.capacity() != BUFFER_SIZE || buffer.isReadOnly()) {
+      return;
+    }
+    if (size.incrementAndGet() > maxBuffers) {
+      size.decrementAndGet();
+      return;
+    }
+    buffer.clear();
+    buffers.offer(buffer);
+  }
+}
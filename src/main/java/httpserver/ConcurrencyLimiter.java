@@ -0,0 +1,148 @@
+package httpserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests handled concurrently, adapting the limit to the observed latency.
+ *
+ * <p>The limit follows a gradient: the average latency of each short window is compared with a
+ * baseline, the lowest window latency seen, which slowly rises to follow lasting changes. As long
+ * as the window latency stays within a tolerance of the baseline, the limit grows by its square
+ * root per window; once requests queue up and the latency rises, the limit shrinks proportionally.
+ * Requests over the limit are rejected immediately instead of queueing behind the others.
+ */
+final class ConcurrencyLimiter implements ServerMetrics.Source {
+  private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int MIN_WINDOW_SAMPLES = 10;
+  // How many windows of a higher latency it takes the baseline to rise by 63% of the difference.
+  private static final int BASELINE_WINDOWS = 100;
+  // How much higher than the baseline the latency may be before the limit shrinks.
+  private static final double TOLERANCE = 2;
+  private static final double SMOOTHING = 0.2;
+  private static final int MIN_LIMIT = 4;
+
+  private final int maxLimit;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder shed = new LongAdder();
+  private volatile int limit;
+  // The samples of the current window.
+  private final LongAdder windowLatencyNanos = new LongAdder();
+  private final LongAdder windowSamples = new LongAdder();
+  private final LongAccumulator windowMaxInFlight = new LongAccumulator(Math::max, 0);
+  private volatile long windowStartNanos = System.nanoTime();
+  // Only one thread at a time updates the limit, the others keep handling requests.
+  private final ReentrantLock updateLock = new ReentrantLock();
+  private double baselineLatencyNanos;
+  private double estimatedLimit;
+
+  /**
+   * Creates a limiter.
+   *
+   * @param initialLimit the limit until enough latencies have been observed.
+   * @param maxLimit the highest limit.
+   */
+  ConcurrencyLimiter(int initialLimit, int maxLimit) {
+    if (initialLimit < MIN_LIMIT || maxLimit < initialLimit) {
+      throw new IllegalArgumentException(
+          "The concurrency limits must satisfy " + MIN_LIMIT + " <= initial <= max");
+    }
+    this.maxLimit = maxLimit;
+    this.limit = initialLimit;
+    this.estimatedLimit = initialLimit;
+  }
+
+  /**
+   * Admits a request if fewer requests than the limit are in flight, {@link #release(long)} must be
+   * called once an admitted request has been handled.
+   *
+   * @return {@code true} if the request was admitted, {@code false} if it must be shed.
+   */
+  boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= limit) {
+        shed.increment();
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        windowMaxInFlight.accumulate(current + 1);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Releases an admitted request.
+   *
+   * @param latencyNanos how long the request took to handle.
+   */
+  void release(long latencyNanos) {
+    inFlight.decrementAndGet();
+    windowLatencyNanos.add(latencyNanos);
+    windowSamples.increment();
+    long nowNanos = System.nanoTime();
+    if (nowNanos - windowStartNanos >= WINDOW_NANOS && updateLock.tryLock()) {
+      try {
+        if (nowNanos - windowStartNanos >= WINDOW_NANOS) {
+          updateLimit(nowNanos);
+        }
+      } finally {
+        updateLock.unlock();
+      }
+    }
+  }
+
+  // Must be called while holding the update lock.
+  private void updateLimit(long nowNanos) {
+    long samples = windowSamples.sum();
+    if (samples < MIN_WINDOW_SAMPLES) {
+      return;
+    }
+    windowStartNanos = nowNanos;
+    // Subtract instead of reset, to keep the samples recorded concurrently for the next window.
+    long latencyNanos = windowLatencyNanos.sum();
+    windowSamples.add(-samples);
+    windowLatencyNanos.add(-latencyNanos);
+    double shortLatencyNanos = (double) latencyNanos / samples;
+    long maxInFlight = windowMaxInFlight.getThenReset();
+    if (baselineLatencyNanos == 0 || shortLatencyNanos < baselineLatencyNanos) {
+      baselineLatencyNanos = shortLatencyNanos;
+    } else {
+      baselineLatencyNanos += (shortLatencyNanos - baselineLatencyNanos) / BASELINE_WINDOWS;
+    }
+    // The latency says nothing about the limit if the requests did not come close to it.
+    if (maxInFlight < estimatedLimit / 2) {
+      return;
+    }
+    double gradient =
+        Math.max(0.5, Math.min(1.0, TOLERANCE * baselineLatencyNanos / shortLatencyNanos));
+    double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+    estimatedLimit =
+        Math.max(
+            MIN_LIMIT, Math.min(maxLimit, estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+    limit = (int) estimatedLimit;
+  }
+
+  long getShedCount() {
+    return shed.sum();
+  }
+
+  @Override
+  public void appendTo(StringBuilder builder) {
+    builder
+        .append("# HELP http_server_concurrency_limit Requests admitted concurrently.\n")
+        .append("# TYPE http_server_concurrency_limit gauge\n")
+        .append("http_server_concurrency_limit ")
+        .append(limit)
+        .append('\n')
+        .append("# HELP http_server_requests_shed_total Requests rejected over the limit.\n")
+        .append("# TYPE http_server_requests_shed_total counter\n")
+        .append("http_server_requests_shed_total ")
+        .append(shed.sum())
+        .append('\n');
+  }
+}
@@ -0,0 +1,62 @@
+package httpserver;
+
+import java.nio.charset.StandardCharsets;
+
+/** The status code, body and content type of a response of an {@link AsyncHttpHandler}. */
+public final class HttpResponse {
+  static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+  private static final byte[] EMPTY_BODY = new byte[0];
+
+  private final int statusCode;
+  private final byte[] body;
+  private final String contentType;
+
+  public HttpResponse(int statusCode, byte[] body) {
+    this(statusCode, body, null);
+  }
+
+  /**
+   * Creates a response with a body of the given type.
+   *
+   * @param statusCode the status code.
+   * @param body the body, empty for no body.
+   * @param contentType the {@code Content-Type} of the body, {@code null} for none.
+   */
+  public HttpResponse(int statusCode, byte[] body, String contentType) {
+    this.statusCode = statusCode;
+    this.body = body;
+    this.contentType = contentType;
+  }
+
+  /**
+   * Creates a response with a UTF-8 encoded text body.
+   *
+   * @param statusCode the status code.
+   * @param body the body, empty for no body.
+   */
+  public HttpResponse(int statusCode, String body) {
+    this(statusCode, body.getBytes(StandardCharsets.UTF_8), TEXT_CONTENT_TYPE);
+  }
+
+  /**
+   * Creates a response without a body.
+   *
+   * @param statusCode the status code.
+   */
+  public HttpResponse(int statusCode) {
+    this(statusCode, EMPTY_BODY);
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  /** Returns the {@code Content-Type} of the body, {@code null} if it has none. */
+  public String getContentType() {
+    return contentType;
+  }
+}
@@ -2,62 +2,783 @@ package httpserver;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import httputil.HttpUtil;
+import io.github.cdimascio.dotenv.Dotenv;
+import io.grpc.Context;
+import io.grpc.Deadline;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
+import threadutil.ThreadUtil;
 
 public final class HttpServer implements AutoCloseable {
+  /** The path of the Prometheus metrics of the routes, unless a handler is registered for it. */
+  public static final String METRICS_PATH = "/metrics";
+  /** The path of the liveness check, which answers 200 while the server runs. */
+  public static final String HEALTH_PATH = "/healthz";
+  /**
+   * The path of the readiness check, which answers 503 while the server is saturated or draining.
+   */
+  public static final String READY_PATH = "/readyz";
+
   private static final Logger logger = Logger.getLogger(HttpServer.class.getName());
   // TODO: #5
 
   private final com.sun.net.httpserver.HttpServer httpServer;
+  private final ExecutorService executor;
+  private final InFlightRequests inFlightRequests;
+  private final long drainTimeoutMillis;
+  private final TrafficCapture trafficCapture;
+  private final AccessLog accessLog;
+  private final SlowRequestWatchdog slowRequestWatchdog;
+  private final com.sun.net.httpserver.HttpServer adminServer;
+  private final ExecutorService adminExecutor;
 
-  private HttpServer(com.sun.net.httpserver.HttpServer httpServer) {
+  private HttpServer(
+      com.sun.net.httpserver.HttpServer httpServer,
+      ExecutorService executor,
+      InFlightRequests inFlightRequests,
+      long drainTimeoutMillis,
+      TrafficCapture trafficCapture,
+      AccessLog accessLog,
+      SlowRequestWatchdog slowRequestWatchdog,
+      com.sun.net.httpserver.HttpServer adminServer,
+      ExecutorService adminExecutor) {
     this.httpServer = httpServer;
+    this.executor = executor;
+    this.inFlightRequests = inFlightRequests;
+    this.drainTimeoutMillis = drainTimeoutMillis;
+    this.trafficCapture = trafficCapture;
+    this.accessLog = accessLog;
+    this.slowRequestWatchdog = slowRequestWatchdog;
+    this.adminServer = adminServer;
+    this.adminExecutor = adminExecutor;
+    httpServer.setExecutor(executor);
     httpServer.start();
     logger.info("Server ready on port: " + httpServer.getAddress().getPort());
+    if (adminServer != null) {
+      adminServer.setExecutor(adminExecutor);
+      adminServer.start();
+      logger.info("Admin server ready on port: " + adminServer.getAddress().getPort());
+    }
   }
 
   public static Builder newBuilder(int serverPort) throws IOException {
     return new Builder(serverPort);
   }
 
+  /**
+   * Wraps an executor so that the tasks an asynchronous handler submits to it run in the context of
+   * the request: its deadline, its span, and the slow-request watchdog samples their thread.
+   *
+   * @param executor the executor to wrap.
+   * @return the wrapped executor.
+   */
+  public static Executor contextExecutor(Executor executor) {
+    return SlowRequestWatchdog.contextExecutor(executor);
+  }
+
+  /**
+   * Stops the server after draining the requests in flight.
+   *
+   * <p>New requests are rejected with 503 Service Unavailable and their connections are closed,
+   * while the requests in flight are given up to the drain timeout to complete. The server then
+   * stops and aborts the requests that are still in flight. The admin server keeps answering that
+   * the server is not ready until then.
+   */
   @Override
   public void close() {
+    inFlightRequests.startDraining();
+    int inFlight = inFlightRequests.getCount();
+    int aborted;
+    try {
+      aborted = inFlightRequests.awaitDrained(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      aborted = inFlightRequests.getCount();
+    }
     httpServer.stop(0);
+    if (executor != null) {
+      executor.shutdown();
+    }
+    // Printed rather than logged, the LogManager may already be reset in a shutdown hook.
+    System.out.println(
+        "Server stopped on port "
+            + httpServer.getAddress().getPort()
+            + ", drained "
+            + Math.max(inFlight - aborted, 0)
+            + " request(s), aborted "
+            + aborted);
+    if (trafficCapture != null) {
+      trafficCapture.close();
+    }
+    if (accessLog != null) {
+      accessLog.close();
+    }
+    if (slowRequestWatchdog != null) {
+      slowRequestWatchdog.close();
+    }
+    if (adminServer != null) {
+      adminServer.stop(0);
+      adminExecutor.shutdown();
+    }
+  }
+
+  /** The implementation that accepts the connections and parses the requests. */
+  public enum Engine {
+    /** The JDK's {@code com.sun.net.httpserver} server, with a single dispatcher thread. */
+    JDK,
+    /**
+     * A non-blocking server with a selector thread per core, persistent connections, pooled buffers
+     * and in-place request parsing. Its contexts do not support {@link
+     * com.sun.net.httpserver.Authenticator}s.
+     */
+    NIO
+  }
+
+  /** The threads that run the handlers. */
+  public enum ExecutorType {
+    /** The dispatcher or selector threads of the server, which also accept the connections. */
+    DISPATCHER,
+    /** A fixed number of platform threads. */
+    FIXED,
+    /** A work-stealing pool of platform threads. */
+    WORK_STEALING,
+    /** A new virtual thread per request, or a platform thread before Java 21. */
+    VIRTUAL
   }
 
   public static final class Builder {
-    private final com.sun.net.httpserver.HttpServer server;
+    private final int serverPort;
+    private Engine engine = Engine.JDK;
+    private int selectorThreads;
+    private boolean reusePort;
+    private final Map<String, AsyncHttpHandler> handlers = new LinkedHashMap<>();
+    private final Map<String, RateLimit> rateLimits = new HashMap<>();
+    private final ServerMetrics metrics = new ServerMetrics();
+    private ExecutorType executorType = ExecutorType.DISPATCHER;
+    private int threads;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private final InFlightRequests inFlightRequests = new InFlightRequests();
+    private long drainTimeoutMillis;
+    private TrafficCapture trafficCapture;
+    private Path accessLogFile;
+    private long accessLogMaxFileBytes = 100L * 1024 * 1024;
+    private int accessLogMaxFiles = 5;
+    private long slowRequestThresholdNanos;
+    private int maxSlowRequestSamplesPerSecond;
+    private int adminPort = -1;
+    private int maxReadyQueueDepth = 100;
+    private double maxReadyShedRate = 0.1;
+
+    private Builder(int serverPort) {
+      this.serverPort = serverPort;
+    }
 
-    private Builder(int serverPort) throws IOException {
-      server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(serverPort), 0);
+    /**
+     * Applies the {@code HTTP_SERVER_ENGINE} ({@code jdk} or {@code nio}), {@code
+     * HTTP_SERVER_SELECTORS}, {@code HTTP_SERVER_REUSE_PORT}, {@code HTTP_SERVER_EXECUTOR} ({@code
+     * dispatcher}, {@code fixed}, {@code work-stealing} or {@code virtual}), {@code
+     * HTTP_SERVER_THREADS}, {@code HTTP_SERVER_DRAIN_TIMEOUT_MILLIS}, {@code
+     * HTTP_SERVER_READY_MAX_QUEUE_DEPTH}, {@code HTTP_SERVER_READY_MAX_SHED_RATE}, {@code
+     * HTTP_SERVER_ACCESS_LOG_MAX_BYTES} and {@code HTTP_SERVER_ACCESS_LOG_MAX_FILES} settings, the
+     * {@code HTTP_SERVER_SLOW_REQUEST_MILLIS} and {@code
+     * HTTP_SERVER_SLOW_REQUEST_SAMPLES_PER_SECOND} settings if the former is positive, and the
+     * {@code HTTP_SERVER_CONCURRENCY_LIMIT} and {@code HTTP_SERVER_MAX_CONCURRENCY_LIMIT} settings
+     * if the former is positive.
+     *
+     * @param dotenv the settings.
+     * @return this builder.
+     */
+    public Builder configure(Dotenv dotenv) {
+      setEngine(
+          Engine.valueOf(dotenv.get("HTTP_SERVER_ENGINE", "jdk").toUpperCase(Locale.ROOT)),
+          Integer.parseInt(dotenv.get("HTTP_SERVER_SELECTORS", "0")));
+      setReusePort(Boolean.parseBoolean(dotenv.get("HTTP_SERVER_REUSE_PORT", "false")));
+      setExecutor(
+          ExecutorType.valueOf(
+              dotenv
+                  .get("HTTP_SERVER_EXECUTOR", "dispatcher")
+                  .toUpperCase(Locale.ROOT)
+                  .replace('-', '_')),
+          Integer.parseInt(dotenv.get("HTTP_SERVER_THREADS", "0")));
+      setDrainTimeout(
+          Long.parseLong(dotenv.get("HTTP_SERVER_DRAIN_TIMEOUT_MILLIS", "0")),
+          TimeUnit.MILLISECONDS);
+      setReadinessLimits(
+          Integer.parseInt(dotenv.get("HTTP_SERVER_READY_MAX_QUEUE_DEPTH", "100")),
+          Double.parseDouble(dotenv.get("HTTP_SERVER_READY_MAX_SHED_RATE", "0.1")));
+      setAccessLogRotation(
+          Long.parseLong(dotenv.get("HTTP_SERVER_ACCESS_LOG_MAX_BYTES", "104857600")),
+          Integer.parseInt(dotenv.get("HTTP_SERVER_ACCESS_LOG_MAX_FILES", "5")));
+      long slowRequestMillis = Long.parseLong(dotenv.get("HTTP_SERVER_SLOW_REQUEST_MILLIS", "0"));
+      if (slowRequestMillis > 0) {
+        setSlowRequestWatchdog(
+            slowRequestMillis,
+            TimeUnit.MILLISECONDS,
+            Integer.parseInt(dotenv.get("HTTP_SERVER_SLOW_REQUEST_SAMPLES_PER_SECOND", "1")));
+      }
+      int initialConcurrencyLimit =
+          Integer.parseInt(dotenv.get("HTTP_SERVER_CONCURRENCY_LIMIT", "0"));
+      if (initialConcurrencyLimit > 0) {
+        setConcurrencyLimit(
+            initialConcurrencyLimit,
+            Integer.parseInt(dotenv.get("HTTP_SERVER_MAX_CONCURRENCY_LIMIT", "1000")));
+      }
+      return this;
+    }
+
+    /**
+     * Sets the implementation of the server, {@link Engine#JDK} by default.
+     *
+     * @param engine the engine.
+     * @param selectorThreads the number of selector threads of the {@link Engine#NIO} engine,
+     *     {@code 0} for the number of available processors.
+     * @return this builder.
+     */
+    public Builder setEngine(Engine engine, int selectorThreads) {
+      if (selectorThreads < 0) {
+        throw new IllegalArgumentException(
+            "selectorThreads must not be negative: " + selectorThreads);
+      }
+      this.engine = engine;
+      this.selectorThreads = selectorThreads;
+      return this;
+    }
+
+    /**
+     * Binds a listening socket per selector thread of the {@link Engine#NIO} engine to the same
+     * port with {@code SO_REUSEPORT}, so that the kernel spreads the new connections across the
+     * threads, instead of the threads sharing one socket. Ignored where {@code SO_REUSEPORT} is not
+     * available, before Java 9 or on Windows.
+     *
+     * @param reusePort whether to bind a socket per selector thread.
+     * @return this builder.
+     */
+    public Builder setReusePort(boolean reusePort) {
+      this.reusePort = reusePort;
+      return this;
+    }
+
+    /**
+     * Sets the threads that run the handlers, the dispatcher or selector threads of the server by
+     * default.
+     *
+     * @param executorType the type of the executor.
+     * @param threads the number of threads of a {@link ExecutorType#FIXED} or {@link
+     *     ExecutorType#WORK_STEALING} executor, {@code 0} for the number of available processors.
+     * @return this builder.
+     */
+    public Builder setExecutor(ExecutorType executorType, int threads) {
+      if (threads < 0) {
+        throw new IllegalArgumentException("threads must not be negative: " + threads);
+      }
+      this.executorType = executorType;
+      this.threads = threads;
+      return this;
     }
 
     public Builder addHandler(String path, HttpHandler handler) {
-      server.createContext(path, new HttpHandlerWrapper(handler));
+      return addHandler(path, handler, RateLimit.UNLIMITED);
+    }
+
+    /**
+     * Registers a handler whose requests are limited in rate. Requests over the limit are rejected
+     * with 429 Too Many Requests and a {@code Retry-After} header.
+     *
+     * @param path the path to handle.
+     * @param handler the handler.
+     * @param rateLimit the rate limit of the path and of each client.
+     * @return this builder.
+     */
+    public Builder addHandler(String path, HttpHandler handler, RateLimit rateLimit) {
+      return addAsyncHandler(
+          path,
+          httpExchange -> {
+            handler.handle(httpExchange);
+            return CompletableFuture.completedFuture(null);
+          },
+          rateLimit);
+    }
+
+    /**
+     * Registers a handler that completes its responses asynchronously, without blocking a server
+     * thread while they are prepared.
+     *
+     * @param path the path to handle.
+     * @param handler the handler.
+     * @return this builder.
+     */
+    public Builder addAsyncHandler(String path, AsyncHttpHandler handler) {
+      return addAsyncHandler(path, handler, RateLimit.UNLIMITED);
+    }
+
+    /**
+     * Registers an asynchronous handler whose requests are limited in rate, see {@link
+     * #addHandler(String, HttpHandler, RateLimit)}.
+     *
+     * @param path the path to handle.
+     * @param handler the handler.
+     * @param rateLimit the rate limit of the path and of each client.
+     * @return this builder.
+     */
+    public Builder addAsyncHandler(String path, AsyncHttpHandler handler, RateLimit rateLimit) {
+      handlers.put(path, handler);
+      rateLimits.put(path, rateLimit);
+      return this;
+    }
+
+    /**
+     * Sets how long {@link HttpServer#close()} waits for the requests in flight, {@code 0} by
+     * default.
+     *
+     * @param timeout the drain timeout.
+     * @param unit the unit of the timeout.
+     * @return this builder.
+     */
+    public Builder setDrainTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) {
+        throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+      }
+      drainTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    /**
+     * Limits the number of requests handled concurrently, adapting the limit to their latency.
+     * Requests over the limit are rejected with 503 Service Unavailable.
+     *
+     * @param initialLimit the limit until enough latencies have been observed, at least 4.
+     * @param maxLimit the highest limit.
+     * @return this builder.
+     */
+    public Builder setConcurrencyLimit(int initialLimit, int maxLimit) {
+      concurrencyLimiter = new ConcurrencyLimiter(initialLimit, maxLimit);
+      return this;
+    }
+
+    /**
+     * Reports the requests slower than a threshold, with the stack of the thread handling them,
+     * logged and added to their span as a {@code slow_request} event. The threads of asynchronous
+     * handlers are only sampled if they were submitted through {@link #contextExecutor(Executor)}.
+     *
+     * @param threshold the time after which a request is slow.
+     * @param unit the unit of the threshold.
+     * @param maxSamplesPerSecond the most stacks taken per second, the other slow requests are only
+     *     counted.
+     * @return this builder.
+     */
+    public Builder setSlowRequestWatchdog(long threshold, TimeUnit unit, int maxSamplesPerSecond) {
+      if (threshold <= 0 || maxSamplesPerSecond < 0) {
+        throw new IllegalArgumentException(
+            "Invalid slow request watchdog: "
+                + threshold
+                + " "
+                + unit
+                + ", "
+                + maxSamplesPerSecond);
+      }
+      slowRequestThresholdNanos = unit.toNanos(threshold);
+      maxSlowRequestSamplesPerSecond = maxSamplesPerSecond;
+      return this;
+    }
+
+    /**
+     * Serves {@link #HEALTH_PATH} and {@link #READY_PATH} on a separate port, with their own
+     * dispatcher and handler threads, so that the checks do not wait behind the traffic of a busy
+     * server. Without an admin port they are served with the traffic.
+     *
+     * @param adminPort the port of the checks.
+     * @return this builder.
+     */
+    public Builder setAdminPort(int adminPort) {
+      this.adminPort = adminPort;
+      return this;
+    }
+
+    /**
+     * Sets when the server is not ready for traffic, over 100 queued requests or a shed rate of 0.1
+     * by default.
+     *
+     * @param maxQueueDepth the most requests queued on the executor of a ready server.
+     * @param maxShedRate the highest fraction of the requests that a ready server sheds over its
+     *     concurrency limit.
+     * @return this builder.
+     */
+    public Builder setReadinessLimits(int maxQueueDepth, double maxShedRate) {
+      this.maxReadyQueueDepth = maxQueueDepth;
+      this.maxReadyShedRate = maxShedRate;
+      return this;
+    }
+
+    /**
+     * Adds the metrics of another component of the application, such as the connection pool of its
+     * client, to {@link #METRICS_PATH}.
+     *
+     * @param source appends the metrics in the Prometheus text format, with their HELP and TYPE
+     *     lines.
+     * @return this builder.
+     */
+    public Builder addMetrics(Consumer<StringBuilder> source) {
+      metrics.addSource(source::accept);
+      return this;
+    }
+
+    /**
+     * Records the arrival time, path and query of every request to a capture file, which can be
+     * replayed by the load generator.
+     *
+     * @param captureFile the capture file, replaced if it exists.
+     * @return this builder.
+     * @throws IOException if the capture file cannot be created.
+     */
+    public Builder setCaptureFile(Path captureFile) throws IOException {
+      if (trafficCapture != null) {
+        trafficCapture.close();
+      }
+      trafficCapture = TrafficCapture.create(captureFile);
+      return this;
+    }
+
+    /**
+     * Writes the method, path, status code, response body bytes and latency of every request to an
+     * access log. The requests only record their entry in memory, a background thread writes them
+     * to the file in batches. Entries are dropped rather than slowing the requests down when the
+     * disk falls behind, and counted in the metrics.
+     *
+     * @param accessLogFile the access log, appended to if it exists.
+     * @return this builder.
+     */
+    public Builder setAccessLog(Path accessLogFile) {
+      this.accessLogFile = accessLogFile;
+      return this;
+    }
+
+    /**
+     * Sets when the access log is rotated, at 100 MiB keeping 5 rotated files by default.
+     *
+     * @param maxFileBytes the size at which the access log is renamed to {@code <file>.1}.
+     * @param maxFiles the number of rotated files kept, {@code <file>.1} being the most recent.
+     * @return this builder.
+     */
+    public Builder setAccessLogRotation(long maxFileBytes, int maxFiles) {
+      if (maxFileBytes <= 0 || maxFiles < 0) {
+        throw new IllegalArgumentException(
+            "Invalid access log rotation: " + maxFileBytes + ", " + maxFiles);
+      }
+      this.accessLogMaxFileBytes = maxFileBytes;
+      this.accessLogMaxFiles = maxFiles;
       return this;
     }
 
-    public HttpServer build() {
-      return new HttpServer(server);
+    public HttpServer build() throws IOException {
+      // Without TCP_NODELAY, the small responses of the servers wait for delayed ACKs.
+      if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+      }
+      com.sun.net.httpserver.HttpServer server;
+      if (engine == Engine.NIO) {
+        server = new NioHttpServer(new InetSocketAddress(serverPort), selectorThreads, reusePort);
+      } else if (reusePort) {
+        throw new IllegalStateException("SO_REUSEPORT sharding needs the NIO engine");
+      } else {
+        server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(serverPort), 0);
+      }
+      int port = server.getAddress().getPort();
+      AccessLog accessLog =
+          accessLogFile == null
+              ? null
+              : new AccessLog(
+                  accessLogFile,
+                  accessLogMaxFileBytes,
+                  accessLogMaxFiles,
+                  "http-server-" + port + "-access-log");
+      SlowRequestWatchdog slowRequestWatchdog =
+          slowRequestThresholdNanos == 0
+              ? null
+              : new SlowRequestWatchdog(
+                  slowRequestThresholdNanos,
+                  maxSlowRequestSamplesPerSecond,
+                  "http-server-" + port + "-watchdog-");
+      List<RateLimiter> rateLimiters = new ArrayList<>();
+      for (Map.Entry<String, AsyncHttpHandler> entry : handlers.entrySet()) {
+        RateLimit rateLimit = rateLimits.get(entry.getKey());
+        RateLimiter rateLimiter =
+            rateLimit.isUnlimited() ? null : new RateLimiter(entry.getKey(), rateLimit);
+        if (rateLimiter != null) {
+          rateLimiters.add(rateLimiter);
+        }
+        server.createContext(
+            entry.getKey(),
+            new HttpHandlerWrapper(
+                entry.getValue(),
+                metrics.getRoute(entry.getKey()),
+                inFlightRequests,
+                rateLimiter,
+                concurrencyLimiter,
+                trafficCapture,
+                accessLog,
+                slowRequestWatchdog));
+      }
+      if (!rateLimiters.isEmpty()) {
+        metrics.addSource(builder -> RateLimiter.appendTo(builder, rateLimiters));
+      }
+      if (concurrencyLimiter != null) {
+        metrics.addSource(concurrencyLimiter);
+      }
+      if (accessLog != null) {
+        metrics.addSource(accessLog);
+      }
+      if (slowRequestWatchdog != null) {
+        metrics.addSource(slowRequestWatchdog);
+      }
+      if (!handlers.containsKey(METRICS_PATH)) {
+        server.createContext(METRICS_PATH, metrics);
+      }
+      ExecutorService executor = newExecutor(port);
+      Readiness readiness =
+          new Readiness(
+              inFlightRequests,
+              executor,
+              concurrencyLimiter,
+              metrics,
+              maxReadyQueueDepth,
+              maxReadyShedRate);
+      com.sun.net.httpserver.HttpServer adminServer = null;
+      ExecutorService adminExecutor = null;
+      if (adminPort >= 0) {
+        adminServer = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(adminPort), 0);
+        adminExecutor =
+            Executors.newSingleThreadExecutor(
+                ThreadUtil.newThreadFactory("http-server-" + port + "-admin-"));
+        adminServer.createContext(HEALTH_PATH, readiness::handleHealth);
+        adminServer.createContext(READY_PATH, readiness::handleReadiness);
+      } else {
+        if (!handlers.containsKey(HEALTH_PATH)) {
+          server.createContext(HEALTH_PATH, readiness::handleHealth);
+        }
+        if (!handlers.containsKey(READY_PATH)) {
+          server.createContext(READY_PATH, readiness::handleReadiness);
+        }
+      }
+      return new HttpServer(
+          server,
+          executor,
+          inFlightRequests,
+          drainTimeoutMillis,
+          trafficCapture,
+          accessLog,
+          slowRequestWatchdog,
+          adminServer,
+          adminExecutor);
+    }
+
+    private ExecutorService newExecutor(int port) {
+      int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+      String threadNamePrefix = "http-server-" + port + "-";
+      switch (executorType) {
+        case FIXED:
+          return Executors.newFixedThreadPool(
+              poolSize, ThreadUtil.newThreadFactory(threadNamePrefix));
+        case WORK_STEALING:
+          return Executors.newWorkStealingPool(poolSize);
+        case VIRTUAL:
+          return ThreadUtil.newVirtualThreadPerTaskExecutor(threadNamePrefix);
+        default:
+          return null;
+      }
     }
   }
 
   private static final class HttpHandlerWrapper implements HttpHandler {
-    private final HttpHandler wrappedHandler;
+    private final AsyncHttpHandler wrappedHandler;
+    private final ServerMetrics.Route metrics;
+    private final InFlightRequests inFlightRequests;
+    private final RateLimiter rateLimiter;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final TrafficCapture trafficCapture;
+    private final AccessLog accessLog;
+    private final SlowRequestWatchdog slowRequestWatchdog;
 
-    private HttpHandlerWrapper(HttpHandler wrappedHandler) {
+    private HttpHandlerWrapper(
+        AsyncHttpHandler wrappedHandler,
+        ServerMetrics.Route metrics,
+        InFlightRequests inFlightRequests,
+        RateLimiter rateLimiter,
+        ConcurrencyLimiter concurrencyLimiter,
+        TrafficCapture trafficCapture,
+        AccessLog accessLog,
+        SlowRequestWatchdog slowRequestWatchdog) {
       this.wrappedHandler = wrappedHandler;
+      this.metrics = metrics;
+      this.inFlightRequests = inFlightRequests;
+      this.rateLimiter = rateLimiter;
+      this.concurrencyLimiter = concurrencyLimiter;
+      this.trafficCapture = trafficCapture;
+      this.accessLog = accessLog;
+      this.slowRequestWatchdog = slowRequestWatchdog;
     }
 
     @Override
     public void handle(HttpExchange httpExchange) {
+      long startNanos = System.nanoTime();
+      metrics.start();
+      if (trafficCapture != null) {
+        trafficCapture.append(httpExchange.getRequestURI().toString());
+      }
+      if (accessLog != null) {
+        // Counts the bytes of the response body, whoever writes it.
+        httpExchange.setStreams(
+            null, new AccessLog.CountingOutputStream(httpExchange.getResponseBody()));
+      }
+      // The context of the request, in which the handler runs and its response is recorded.
+      Context context = Context.current();
       // TODO: #5
+      if (!inFlightRequests.enter()) {
+        // The server is draining, let the client retry on a new connection, to another server.
+        httpExchange.getResponseHeaders().set("Connection", "close");
+        reject(httpExchange, 503, startNanos, context);
+        return;
+      }
+      long retryAfterNanos =
+          rateLimiter == null
+              ? 0
+              : rateLimiter.tryAcquire(httpExchange.getRemoteAddress().getAddress());
+      if (retryAfterNanos > 0) {
+        inFlightRequests.exit();
+        // Retry-After is in whole seconds, round up so that the retry is admitted.
+        long retryAfterSeconds = (retryAfterNanos + 999_999_999) / 1_000_000_000;
+        httpExchange.getResponseHeaders().set("Retry-After", Long.toString(retryAfterSeconds));
+        reject(httpExchange, 429, startNanos, context);
+        return;
+      }
+      if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire()) {
+        // Reject right away, waiting would only add to the latency of the admitted requests.
+        inFlightRequests.exit();
+        reject(httpExchange, 503, startNanos, context);
+        return;
+      }
+      // The handler, and the requests it sends, see the deadline of the caller in the context.
+      Deadline deadline =
+          HttpUtil.parseTimeout(httpExchange.getRequestHeaders().getFirst(HttpUtil.TIMEOUT_HEADER));
+      if (deadline != null) {
+        context = HttpUtil.withDeadline(context, deadline);
+      }
+      SlowRequestWatchdog.Request watchedRequest = null;
+      if (slowRequestWatchdog != null) {
+        watchedRequest = slowRequestWatchdog.start(httpExchange, startNanos, context);
+        context = SlowRequestWatchdog.withRequest(context, watchedRequest);
+      }
+      Context previous = context.attach();
+      CompletableFuture<HttpResponse> response;
+      try {
+        response = wrappedHandler.handle(httpExchange);
+      } catch (IOException | RuntimeException e) {
+        response = new CompletableFuture<>();
+        response.completeExceptionally(e);
+      } finally {
+        context.detach(previous);
+        if (watchedRequest != null) {
+          watchedRequest.leave();
+        }
+      }
+      SlowRequestWatchdog.Request watched = watchedRequest;
+      Context requestContext = context;
+      response.whenComplete(
+          (httpResponse, error) ->
+              complete(httpExchange, httpResponse, error, startNanos, requestContext, watched));
+    }
+
+    // Sends the response of an admitted request, on the thread that completed it.
+    private void complete(
+        HttpExchange httpExchange,
+        HttpResponse httpResponse,
+        Throwable error,
+        long startNanos,
+        Context context,
+        SlowRequestWatchdog.Request watchedRequest) {
       try {
-        wrappedHandler.handle(httpExchange);
+        if (error != null) {
+          if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+          }
+          logger.info(error.toString());
+          // Unless the handler already started its response.
+          if (httpExchange.getResponseCode() == -1) {
+            Responses.sendStatus(httpExchange, 500);
+          }
+        } else if (httpResponse != null) {
+          Responses.send(httpExchange, httpResponse);
+        }
       } catch (IOException e) {
         logger.info(e.getMessage());
+        error = e;
+      } finally {
+        httpExchange.close();
+        long latencyNanos = System.nanoTime() - startNanos;
+        if (concurrencyLimiter != null) {
+          concurrencyLimiter.release(latencyNanos);
+        }
+        inFlightRequests.exit();
+        if (watchedRequest != null) {
+          slowRequestWatchdog.end(watchedRequest);
+        }
+        end(httpExchange, context, error, latencyNanos);
+      }
+    }
+
+    private void reject(
+        HttpExchange httpExchange, int statusCode, long startNanos, Context context) {
+      Throwable error = null;
+      try {
+        Responses.sendStatus(httpExchange, statusCode);
+      } catch (IOException e) {
+        logger.info(e.getMessage());
+        error = e;
+      } finally {
+        httpExchange.close();
+        end(httpExchange, context, error, System.nanoTime() - startNanos);
+      }
+    }
+
+    /**
+     * Records a request once its response is sent, or failed to be, with the status code the client
+     * received.
+     *
+     * @param httpExchange the closed exchange.
+     * @param context the context of the request.
+     * @param error why the request failed, {@code null} if it did not.
+     * @param latencyNanos the time taken to handle the request.
+     */
+    private void end(
+        HttpExchange httpExchange, Context context, Throwable error, long latencyNanos) {
+      metrics.end(httpExchange.getResponseCode(), latencyNanos);
+      log(httpExchange, latencyNanos);
+      // TODO: #5
+    }
+
+    private void log(HttpExchange httpExchange, long latencyNanos) {
+      if (accessLog != null) {
+        accessLog.append(
+            httpExchange.getRequestMethod(),
+            httpExchange.getRequestURI().getRawPath(),
+            httpExchange.getResponseCode(),
+            ((AccessLog.CountingOutputStream) httpExchange.getResponseBody()).getCount(),
+            latencyNanos);
       }
     }
   }
@@ -0,0 +1,69 @@
+package httpserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Counts the requests being handled by a server, so that it can drain them before it stops. */
+final class InFlightRequests {
+  private final AtomicInteger count = new AtomicInteger();
+  private volatile boolean draining;
+
+  /**
+   * Admits a request unless the server is draining, {@link #exit()} must be called once an admitted
+   * request has been handled.
+   *
+   * @return {@code true} if the request was admitted, {@code false} if the server is draining.
+   */
+  boolean enter() {
+    count.incrementAndGet();
+    // Checked after counting the request, so that awaitDrained() either waits for it or it is
+    // rejected.
+    if (draining) {
+      exit();
+      return false;
+    }
+    return true;
+  }
+
+  void exit() {
+    if (count.decrementAndGet() == 0 && draining) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  boolean isDraining() {
+    return draining;
+  }
+
+  int getCount() {
+    return count.get();
+  }
+
+  /** Stops admitting requests. */
+  void startDraining() {
+    draining = true;
+  }
+
+  /**
+   * Waits until the admitted requests have been handled, after {@link #startDraining()}.
+   *
+   * @param timeout the longest time to wait.
+   * @param unit the unit of the timeout.
+   * @return the number of requests still in flight after the timeout, {@code 0} if all were
+   *     handled.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  synchronized int awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+    while (count.get() > 0) {
+      long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) {
+        break;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+    }
+    return count.get();
+  }
+}
@@ -0,0 +1,453 @@
+package httpserver;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * A request of a {@link NioHttpServer} connection and its response.
+ *
+ * <p>The request line and headers are read from the connection's buffer when the handler asks for
+ * them, they must not be used once the exchange is closed. The response body is written to a pooled
+ * buffer and handed to the connection, with the headers, when the exchange is closed.
+ */
+final class NioHttpExchange extends HttpExchange implements Runnable {
+  private static final Logger logger = Logger.getLogger(NioHttpExchange.class.getName());
+  private static final byte[][] STATUS_LINES = new byte[600][];
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  static {
+    for (int code = 100; code < STATUS_LINES.length; code++) {
+      STATUS_LINES[code] =
+          ("HTTP/1.1 " + code + " " + reasonPhrase(code) + "\r\n")
+              .getBytes(StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private final NioHttpServer.Connection connection;
+  private final HttpContext context;
+  private final String method;
+  private final boolean http10;
+  private final int targetStart;
+  private final int targetEnd;
+  private final int bodyStart;
+  private final int contentLength;
+  private boolean keepAlive;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private URI requestUri;
+  private Headers requestHeaders;
+  private Headers responseHeaders;
+  private InputStream requestBody;
+  private OutputStream responseBody;
+  private int responseCode = -1;
+  private long responseLength;
+  private ByteBuffer body;
+
+  NioHttpExchange(
+      NioHttpServer.Connection connection,
+      HttpContext context,
+      String method,
+      boolean http10,
+      int targetStart,
+      int targetEnd,
+      int bodyStart,
+      int contentLength,
+      boolean keepAlive) {
+    this.connection = connection;
+    this.context = context;
+    this.method = method;
+    this.http10 = http10;
+    this.targetStart = targetStart;
+    this.targetEnd = targetEnd;
+    this.bodyStart = bodyStart;
+    this.contentLength = contentLength;
+    this.keepAlive = keepAlive;
+  }
+
+  /** Runs the handler of the context, answering 400 Bad Request if the target is not a URI. */
+  @Override
+  public void run() {
+    try {
+      requestUri =
+          new URI(
+              new String(
+                  connection.getInput(),
+                  targetStart,
+                  targetEnd - targetStart,
+                  StandardCharsets.UTF_8));
+    } catch (URISyntaxException e) {
+      keepAlive = false;
+      try {
+        sendResponseHeaders(400, -1);
+      } catch (IOException ignored) {
+        // Not sent yet.
+      }
+      close();
+      return;
+    }
+    try {
+      List<Filter> filters = context.getFilters();
+      if (filters.isEmpty()) {
+        context.getHandler().handle(this);
+      } else {
+        new Filter.Chain(filters, context.getHandler()).doFilter(this);
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.info(e.toString());
+      // Like the JDK's server, close the connection unless the handler completed the response.
+      if (closed.compareAndSet(false, true)) {
+        releaseBody();
+        connection.abort();
+      }
+    }
+  }
+
+  @Override
+  public Headers getRequestHeaders() {
+    if (requestHeaders == null) {
+      Headers headers = new Headers();
+      byte[] bytes = connection.getInput();
+      int[] offsets = connection.getHeaderOffsets();
+      for (int i = 0; i < 4 * connection.getHeaderCount(); i += 4) {
+        headers.add(
+            new String(bytes, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.ISO_8859_1),
+            new String(
+                bytes,
+                offsets[i + 2],
+                offsets[i + 3] - offsets[i + 2],
+                StandardCharsets.ISO_8859_1));
+      }
+      requestHeaders = headers;
+    }
+    return requestHeaders;
+  }
+
+  @Override
+  public Headers getResponseHeaders() {
+    if (responseHeaders == null) {
+      responseHeaders = new Headers();
+    }
+    return responseHeaders;
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return requestUri;
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return method;
+  }
+
+  @Override
+  public HttpContext getHttpContext() {
+    return context;
+  }
+
+  /**
+   * Hands the response over to the connection, or closes the connection if the response was not
+   * started or its body is shorter than announced.
+   */
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    int bodyLength = body == null ? 0 : body.position();
+    if (responseCode == -1 || (responseLength > 0 && bodyLength != responseLength)) {
+      releaseBody();
+      connection.abort();
+      return;
+    }
+    NioHttpServer server = connection.getServer();
+    ByteBuffer head = server.getBufferPool().acquire();
+    head = put(head, STATUS_LINES[responseCode]);
+    head = put(head, server.getDateHeader());
+    String connectionHeader = null;
+    if (responseHeaders != null) {
+      for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+        String name = header.getKey();
+        if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding")) {
+          continue;
+        }
+        for (String value : header.getValue()) {
+          if (name.equalsIgnoreCase("Connection")) {
+            connectionHeader = value;
+          }
+          head = putAscii(head, name);
+          head = putAscii(head, ": ");
+          head = putAscii(head, value);
+          head = put(head, CRLF);
+        }
+      }
+    }
+    if (responseCode >= 200 && responseCode != 204 && responseCode != 304) {
+      head = putAscii(head, "Content-Length: ");
+      head = putAscii(head, Integer.toString(bodyLength));
+      head = put(head, CRLF);
+    }
+    if ("close".equalsIgnoreCase(connectionHeader)) {
+      keepAlive = false;
+    } else if (connectionHeader == null && !keepAlive) {
+      head = putAscii(head, "Connection: close\r\n");
+    } else if (connectionHeader == null && http10) {
+      head = putAscii(head, "Connection: keep-alive\r\n");
+    }
+    head = put(head, CRLF);
+    head.flip();
+    if (body == null) {
+      connection.complete(new ByteBuffer[] {head}, keepAlive);
+    } else {
+      body.flip();
+      connection.complete(new ByteBuffer[] {head, body}, keepAlive);
+    }
+  }
+
+  @Override
+  public InputStream getRequestBody() {
+    if (requestBody == null) {
+      requestBody = new ByteArrayInputStream(connection.getInput(), bodyStart, contentLength);
+    }
+    return requestBody;
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    if (responseBody == null) {
+      responseBody = new ResponseBody();
+    }
+    return responseBody;
+  }
+
+  /**
+   * Starts the response, which is only sent once the exchange is closed.
+   *
+   * @param responseCode the status code.
+   * @param responseLength the length of the body, {@code 0} for any length or {@code -1} for none.
+   * @throws IOException if the response was already started.
+   */
+  @Override
+  public void sendResponseHeaders(int responseCode, long responseLength) throws IOException {
+    if (this.responseCode != -1) {
+      throw new IOException("The response headers have already been sent");
+    }
+    if (responseCode < 100 || responseCode >= STATUS_LINES.length) {
+      throw new IllegalArgumentException("Invalid status code: " + responseCode);
+    }
+    this.responseCode = responseCode;
+    boolean noBody =
+        method.equals("HEAD") || responseCode < 200 || responseCode == 204 || responseCode == 304;
+    this.responseLength = noBody ? -1 : responseLength;
+  }
+
+  /**
+   * Sends the remaining bytes of a buffer as the whole response body, without copying them into a
+   * pooled buffer. The selector thread writes the buffer after the exchange is closed, its content
+   * must not change until then.
+   *
+   * @param buffer the body, heap or direct.
+   * @throws IOException if the response has no body or another length, or a body was written.
+   */
+  void sendResponseBody(ByteBuffer buffer) throws IOException {
+    if (responseCode == -1) {
+      throw new IOException("sendResponseHeaders() must be called first");
+    }
+    if (body != null || responseLength < 0 || closed.get()) {
+      throw new IOException("The response body cannot be sent");
+    }
+    if (responseLength > 0 && buffer.remaining() != responseLength) {
+      throw new IOException("The response body does not have the announced length");
+    }
+    // Read-only, so that it is never recycled into the pool, and positioned at its end as if it had
+    // been written, for close().
+    ByteBuffer readOnly = buffer.slice().asReadOnlyBuffer();
+    readOnly.position(readOnly.limit());
+    body = readOnly;
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return connection.getRemoteAddress();
+  }
+
+  @Override
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return connection.getLocalAddress();
+  }
+
+  @Override
+  public String getProtocol() {
+    return http10 ? "HTTP/1.0" : "HTTP/1.1";
+  }
+
+  /** Returns an attribute of the context, the exchanges share them like those of the JDK. */
+  @Override
+  public Object getAttribute(String name) {
+    return context.getAttributes().get(name);
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    if (value == null) {
+      context.getAttributes().remove(name);
+    } else {
+      context.getAttributes().put(name, value);
+    }
+  }
+
+  @Override
+  public void setStreams(InputStream requestBody, OutputStream responseBody) {
+    if (requestBody != null) {
+      this.requestBody = requestBody;
+    }
+    if (responseBody != null) {
+      this.responseBody = responseBody;
+    }
+  }
+
+  @Override
+  public HttpPrincipal getPrincipal() {
+    return null;
+  }
+
+  private void releaseBody() {
+    if (body != null) {
+      connection.getServer().getBufferPool().release(body);
+      body = null;
+    }
+  }
+
+  // Returns the buffer, or a larger copy of it if fewer bytes remain.
+  private ByteBuffer ensureRemaining(ByteBuffer buffer, int bytes) {
+    if (buffer.remaining() >= bytes) {
+      return buffer;
+    }
+    ByteBuffer larger =
+        ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+    buffer.flip();
+    larger.put(buffer);
+    connection.getServer().getBufferPool().release(buffer);
+    return larger;
+  }
+
+  private ByteBuffer put(ByteBuffer buffer, byte[] bytes) {
+    buffer = ensureRemaining(buffer, bytes.length);
+    buffer.put(bytes);
+    return buffer;
+  }
+
+  private ByteBuffer putAscii(ByteBuffer buffer, String string) {
+    buffer = ensureRemaining(buffer, string.length());
+    for (int i = 0; i < string.length(); i++) {
+      buffer.put((byte) string.charAt(i));
+    }
+    return buffer;
+  }
+
+  /** Returns the reason phrase of a status code, empty if it is not a common one. */
+  static String reasonPhrase(int code) {
+    switch (code) {
+      case 100:
+        return "Continue";
+      case 200:
+        return "OK";
+      case 201:
+        return "Created";
+      case 202:
+        return "Accepted";
+      case 204:
+        return "No Content";
+      case 301:
+        return "Moved Permanently";
+      case 302:
+        return "Found";
+      case 304:
+        return "Not Modified";
+      case 400:
+        return "Bad Request";
+      case 401:
+        return "Unauthorized";
+      case 403:
+        return "Forbidden";
+      case 404:
+        return "Not Found";
+      case 405:
+        return "Method Not Allowed";
+      case 408:
+        return "Request Timeout";
+      case 413:
+        return "Payload Too Large";
+      case 429:
+        return "Too Many Requests";
+      case 431:
+        return "Request Header Fields Too Large";
+      case 500:
+        return "Internal Server Error";
+      case 501:
+        return "Not Implemented";
+      case 502:
+        return "Bad Gateway";
+      case 503:
+        return "Service Unavailable";
+      case 504:
+        return "Gateway Timeout";
+      case 505:
+        return "HTTP Version Not Supported";
+      default:
+        return "";
+    }
+  }
+
+  /** Buffers the response body until the exchange is closed. */
+  private final class ResponseBody extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      if (closed.get()) {
+        throw new IOException("The exchange is closed");
+      }
+      if (responseCode == -1) {
+        throw new IOException("sendResponseHeaders() must be called first");
+      }
+      int written = body == null ? 0 : body.position();
+      if (responseLength < 0 || (responseLength > 0 && written + length > responseLength)) {
+        throw new IOException("Too many bytes to write to the stream");
+      }
+      if (body == null) {
+        body = connection.getServer().getBufferPool().acquire();
+      }
+      body = ensureRemaining(body, length);
+      body.put(bytes, offset, length);
+    }
+
+    @Override
+    public void close() {
+      NioHttpExchange.this.close();
+    }
+  }
+}
@@ -0,0 +1,811 @@
+package httpserver;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * An HTTP/1.1 server on non-blocking sockets, which runs the same {@link HttpHandler}s as the JDK's
+ * server.
+ *
+ * <p>Each selector thread accepts connections and keeps them for their lifetime, so connections are
+ * spread across the threads without handing them over. The threads either share one listening
+ * socket, or each binds its own to the same port with {@code SO_REUSEPORT}, so that the kernel
+ * spreads the connections and the threads do not contend to accept them. Connections are kept alive
+ * between requests, read into pooled buffers and parsed in place: the request line and headers are
+ * located by their offsets in the buffer, and only turned into strings when a handler asks for
+ * them. Pipelined requests are handled one at a time per connection, so that the responses go out
+ * in order.
+ *
+ * <p>Without an executor, the handlers run on the selector threads. Request bodies must have a
+ * {@code Content-Length}, responses are buffered and sent with one. Contexts do not run {@link
+ * Authenticator}s, authentication can be done in a {@link Filter} instead.
+ */
+final class NioHttpServer extends com.sun.net.httpserver.HttpServer {
+  private static final Logger logger = Logger.getLogger(NioHttpServer.class.getName());
+  private static final int MAX_HEADER_BYTES = 64 * 1024;
+  private static final int MAX_REQUEST_BYTES = 1024 * 1024;
+  private static final int MAX_HEADERS = 100;
+  private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+  private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+  private static final byte[] HTTP_1_0 = ascii("HTTP/1.0");
+  private static final byte[] CONTENT_LENGTH = ascii("content-length");
+  private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+  private static final byte[] CONNECTION = ascii("connection");
+  private static final byte[] CLOSE = ascii("close");
+  private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+  private static final String[] METHODS = {
+    "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "TRACE", "CONNECT"
+  };
+  private static final byte[][] METHOD_BYTES = new byte[METHODS.length][];
+  // Only available from Java 9, and not on all platforms.
+  private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+  static {
+    for (int i = 0; i < METHODS.length; i++) {
+      METHOD_BYTES[i] = ascii(METHODS[i]);
+    }
+  }
+
+  private final InetSocketAddress address;
+  private final Loop[] loops;
+  private final List<Context> contexts = new CopyOnWriteArrayList<>();
+  private final BufferPool bufferPool;
+  private volatile Executor executor;
+  private volatile boolean started;
+  private volatile long dateSecond;
+  private volatile byte[] dateHeader;
+
+  /**
+   * Creates a server bound to an address.
+   *
+   * @param address the address to listen on.
+   * @param selectorThreads the number of selector threads, {@code 0} for the number of available
+   *     processors.
+   * @param reusePort whether each selector thread binds its own listening socket with {@code
+   *     SO_REUSEPORT}, rather than sharing one, if the platform supports it.
+   * @throws IOException if the address cannot be bound.
+   */
+  NioHttpServer(InetSocketAddress address, int selectorThreads, boolean reusePort)
+      throws IOException {
+    int loopCount =
+        selectorThreads > 0 ? selectorThreads : Runtime.getRuntime().availableProcessors();
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    if (reusePort && loopCount > 1) {
+      if (SO_REUSEPORT != null && serverChannel.supportedOptions().contains(SO_REUSEPORT)) {
+        serverChannel.setOption(SO_REUSEPORT, true);
+      } else {
+        logger.info("SO_REUSEPORT is not available, sharing one listening socket");
+        reusePort = false;
+      }
+    }
+    serverChannel.bind(address, 0);
+    this.address = (InetSocketAddress) serverChannel.getLocalAddress();
+    bufferPool = new BufferPool(loopCount * 256);
+    loops = new Loop[loopCount];
+    for (int i = 0; i < loopCount; i++) {
+      if (i > 0 && reusePort) {
+        // Bound to the port of the first socket, in case the address has an ephemeral port.
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(SO_REUSEPORT, true);
+        serverChannel.bind(this.address, 0);
+      }
+      loops[i] = new Loop(i, serverChannel);
+    }
+    updateDate(System.currentTimeMillis());
+  }
+
+  @Override
+  public void bind(InetSocketAddress address, int backlog) throws IOException {
+    throw new BindException("The server is already bound to " + this.address);
+  }
+
+  @Override
+  public void start() {
+    if (started) {
+      throw new IllegalStateException("The server is already started");
+    }
+    started = true;
+    for (Loop loop : loops) {
+      loop.thread.start();
+    }
+  }
+
+  @Override
+  public void setExecutor(Executor executor) {
+    if (started) {
+      throw new IllegalStateException("The server is already started");
+    }
+    this.executor = executor;
+  }
+
+  @Override
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /** Stops accepting connections and closes them, without waiting for the exchanges in flight. */
+  @Override
+  public void stop(int delay) {
+    if (delay < 0) {
+      throw new IllegalArgumentException("delay must not be negative: " + delay);
+    }
+    for (Loop loop : loops) {
+      loop.running = false;
+      loop.selector.wakeup();
+    }
+    for (Loop loop : loops) {
+      if (loop.thread.isAlive() && loop.thread != Thread.currentThread()) {
+        try {
+          loop.thread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    for (Loop loop : loops) {
+      try {
+        loop.serverChannel.close();
+      } catch (IOException e) {
+        logger.info(e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public HttpContext createContext(String path, HttpHandler handler) {
+    if (path == null || !path.startsWith("/")) {
+      throw new IllegalArgumentException("Invalid path: " + path);
+    }
+    Context context = new Context(path, handler);
+    synchronized (contexts) {
+      for (Context existing : contexts) {
+        if (existing.path.equals(path)) {
+          throw new IllegalArgumentException("A context already exists for path: " + path);
+        }
+      }
+      contexts.add(context);
+    }
+    return context;
+  }
+
+  @Override
+  public HttpContext createContext(String path) {
+    return createContext(path, null);
+  }
+
+  @Override
+  public void removeContext(String path) {
+    synchronized (contexts) {
+      if (!contexts.removeIf(context -> context.path.equals(path))) {
+        throw new IllegalArgumentException("No context exists for path: " + path);
+      }
+    }
+  }
+
+  @Override
+  public void removeContext(HttpContext context) {
+    contexts.remove(context);
+  }
+
+  @Override
+  public InetSocketAddress getAddress() {
+    return address;
+  }
+
+  byte[] getDateHeader() {
+    return dateHeader;
+  }
+
+  BufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  private void updateDate(long nowMillis) {
+    long second = nowMillis / 1000;
+    if (second != dateSecond) {
+      dateSecond = second;
+      dateHeader =
+          ascii(
+              "Date: "
+                  + DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                      Instant.ofEpochMilli(nowMillis).atZone(ZoneOffset.UTC))
+                  + "\r\n");
+    }
+  }
+
+  // Returns the context with the longest path that prefixes the request path, like the JDK's
+  // server.
+  private Context findContext(byte[] bytes, int start, int end) {
+    int pathEnd = start;
+    while (pathEnd < end && bytes[pathEnd] != '?' && bytes[pathEnd] != '#') {
+      pathEnd++;
+    }
+    Context found = null;
+    for (Context context : contexts) {
+      byte[] path = context.pathBytes;
+      if (path.length <= pathEnd - start
+          && (found == null || path.length > found.pathBytes.length)
+          && regionMatches(bytes, start, path, false)) {
+        found = context;
+      }
+    }
+    return found;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> reusePortOption() {
+    try {
+      return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static byte[] ascii(String string) {
+    return string.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static boolean regionMatches(
+      byte[] bytes, int offset, byte[] expected, boolean ignoreCase) {
+    for (int i = 0; i < expected.length; i++) {
+      byte b = bytes[offset + i];
+      if (ignoreCase && b >= 'A' && b <= 'Z') {
+        b += 'a' - 'A';
+      }
+      if (b != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] bytes, int from, int to, byte b) {
+    for (int i = from; i < to; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Returns the index following the empty line that ends the headers, or -1 if it was not read yet.
+  private static int indexOfHeadersEnd(byte[] bytes, int from, int to) {
+    for (int i = from; i + 3 < to; i++) {
+      if (bytes[i] == '\r'
+          && bytes[i + 1] == '\n'
+          && bytes[i + 2] == '\r'
+          && bytes[i + 3] == '\n') {
+        return i + 4;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  /** A selector thread and the connections it accepted. */
+  private final class Loop implements Runnable {
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    // Connections whose response is ready or that must be closed, from any thread.
+    private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private long nowNanos;
+
+    private Loop(int index, ServerSocketChannel serverChannel) throws IOException {
+      this.serverChannel = serverChannel;
+      serverChannel.configureBlocking(false);
+      selector = Selector.open();
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      thread = new Thread(this, "http-server-" + address.getPort() + "-selector-" + (index + 1));
+    }
+
+    @Override
+    public void run() {
+      long lastSweepNanos = System.nanoTime();
+      while (running) {
+        try {
+          if (pending.isEmpty()) {
+            selector.select(1000);
+          } else {
+            selector.selectNow();
+          }
+          nowNanos = System.nanoTime();
+          for (SelectionKey key : selector.selectedKeys()) {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              Connection connection = (Connection) key.attachment();
+              try {
+                if (key.isWritable()) {
+                  connection.flush();
+                } else if (key.isReadable()) {
+                  connection.read();
+                }
+              } catch (IOException e) {
+                connection.close();
+              }
+            }
+          }
+          selector.selectedKeys().clear();
+          Connection connection;
+          while ((connection = pending.poll()) != null) {
+            try {
+              connection.flush();
+            } catch (IOException e) {
+              connection.close();
+            }
+          }
+          if (nowNanos - lastSweepNanos >= TimeUnit.SECONDS.toNanos(1)) {
+            lastSweepNanos = nowNanos;
+            updateDate(System.currentTimeMillis());
+            closeIdleConnections();
+          }
+        } catch (IOException e) {
+          logger.info(e.getMessage());
+        }
+      }
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          ((Connection) key.attachment()).close();
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        logger.info(e.getMessage());
+      }
+    }
+
+    private void accept() throws IOException {
+      // Another selector thread sharing the socket may have accepted the connection first.
+      SocketChannel channel;
+      while ((channel = serverChannel.accept()) != null) {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(this, channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+      }
+    }
+
+    private void closeIdleConnections() {
+      for (SelectionKey key : selector.keys()) {
+        Object attachment = key.attachment();
+        if (attachment instanceof Connection) {
+          Connection connection = (Connection) attachment;
+          if (connection.exchange == null
+              && connection.output == null
+              && nowNanos - connection.lastActiveNanos > IDLE_TIMEOUT_NANOS) {
+            connection.close();
+          }
+        }
+      }
+    }
+
+    void submit(Connection connection) {
+      pending.add(connection);
+      if (Thread.currentThread() != thread) {
+        selector.wakeup();
+      }
+    }
+  }
+
+  /**
+   * A connection, which reads and handles one request at a time. Its fields are only accessed by
+   * its selector thread, except while an exchange is in flight, when the exchange reads the request
+   * and then hands the response over.
+   */
+  final class Connection {
+    private final Loop loop;
+    private final SocketChannel channel;
+    private final InetSocketAddress remoteAddress;
+    private SelectionKey key;
+    // The bytes read so far, null while none are buffered.
+    private ByteBuffer input;
+    private int requestStart;
+    private int requestEnd;
+    private int headersScanned;
+    // The name start, name end, value start and value end of each header of the current request.
+    private int[] headerOffsets = new int[4 * 16];
+    private int headerCount;
+    private NioHttpExchange exchange;
+    private ByteBuffer[] output;
+    private boolean closeAfterOutput;
+    private long lastActiveNanos;
+
+    private Connection(Loop loop, SocketChannel channel) throws IOException {
+      this.loop = loop;
+      this.channel = channel;
+      this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+      this.lastActiveNanos = loop.nowNanos;
+    }
+
+    NioHttpServer getServer() {
+      return NioHttpServer.this;
+    }
+
+    InetSocketAddress getRemoteAddress() {
+      return remoteAddress;
+    }
+
+    InetSocketAddress getLocalAddress() {
+      return address;
+    }
+
+    byte[] getInput() {
+      return input.array();
+    }
+
+    int getHeaderCount() {
+      return headerCount;
+    }
+
+    int[] getHeaderOffsets() {
+      return headerOffsets;
+    }
+
+    /**
+     * Sends the response of the exchange in flight, from any thread.
+     *
+     * @param response the buffers to write, which are returned to the pool once written.
+     * @param keepAlive whether to read the next request once the response is written.
+     */
+    void complete(ByteBuffer[] response, boolean keepAlive) {
+      output = response;
+      closeAfterOutput = !keepAlive;
+      loop.submit(this);
+    }
+
+    /** Closes the connection without a response, from any thread. */
+    void abort() {
+      output = null;
+      closeAfterOutput = true;
+      loop.submit(this);
+    }
+
+    private void read() throws IOException {
+      if (input == null) {
+        input = bufferPool.acquire();
+      } else if (!input.hasRemaining()) {
+        makeRoom();
+      }
+      if (channel.read(input) < 0) {
+        close();
+        return;
+      }
+      lastActiveNanos = loop.nowNanos;
+      parse();
+    }
+
+    // Moves the partial request to the start of the buffer, or grows the buffer if it is already
+    // there. The size of the requests is checked while parsing, so the buffer stays bounded.
+    private void makeRoom() {
+      byte[] bytes = input.array();
+      if (requestStart > 0) {
+        System.arraycopy(bytes, requestStart, bytes, 0, input.position() - requestStart);
+        input.position(input.position() - requestStart);
+        headersScanned -= requestStart;
+        requestStart = 0;
+      } else {
+        ByteBuffer larger = ByteBuffer.allocate(input.capacity() * 2);
+        input.flip();
+        larger.put(input);
+        bufferPool.release(input);
+        input = larger;
+      }
+    }
+
+    // Parses the next buffered request, once all of it was read, and dispatches it.
+    private void parse() {
+      if (input == null || exchange != null || output != null || !channel.isOpen()) {
+        return;
+      }
+      byte[] bytes = input.array();
+      int end = input.position();
+      if (requestStart == end) {
+        bufferPool.release(input);
+        input = null;
+        requestStart = 0;
+        headersScanned = 0;
+        return;
+      }
+      int headersEnd = indexOfHeadersEnd(bytes, Math.max(requestStart, headersScanned - 3), end);
+      if (headersEnd < 0) {
+        headersScanned = end;
+        if (end - requestStart > MAX_HEADER_BYTES) {
+          reject(431, "Request Header Fields Too Large");
+        }
+        return;
+      }
+      // The request line.
+      int lineEnd = indexOf(bytes, requestStart, headersEnd, (byte) '\r');
+      int methodEnd = indexOf(bytes, requestStart, lineEnd, (byte) ' ');
+      int targetEnd = methodEnd < 0 ? -1 : indexOf(bytes, methodEnd + 1, lineEnd, (byte) ' ');
+      if (targetEnd < 0
+          || methodEnd == requestStart
+          || bytes[methodEnd + 1] != '/'
+          || lineEnd - targetEnd - 1 != HTTP_1_1.length) {
+        reject(400, "Bad Request");
+        return;
+      }
+      boolean http10 = regionMatches(bytes, targetEnd + 1, HTTP_1_0, false);
+      if (!http10 && !regionMatches(bytes, targetEnd + 1, HTTP_1_1, false)) {
+        reject(505, "HTTP Version Not Supported");
+        return;
+      }
+      // The headers.
+      headerCount = 0;
+      long contentLength = 0;
+      boolean keepAlive = !http10;
+      for (int lineStart = lineEnd + 2; lineStart < headersEnd - 2; lineStart = lineEnd + 2) {
+        lineEnd = indexOf(bytes, lineStart, headersEnd, (byte) '\r');
+        int colon = indexOf(bytes, lineStart, lineEnd, (byte) ':');
+        if (colon <= lineStart || isWhitespace(bytes[lineStart])) {
+          reject(400, "Bad Request");
+          return;
+        }
+        if (headerCount == MAX_HEADERS) {
+          reject(431, "Request Header Fields Too Large");
+          return;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < lineEnd && isWhitespace(bytes[valueStart])) {
+          valueStart++;
+        }
+        int valueEnd = lineEnd;
+        while (valueEnd > valueStart && isWhitespace(bytes[valueEnd - 1])) {
+          valueEnd--;
+        }
+        if (headerOffsets.length < 4 * (headerCount + 1)) {
+          int[] larger = new int[headerOffsets.length * 2];
+          System.arraycopy(headerOffsets, 0, larger, 0, headerOffsets.length);
+          headerOffsets = larger;
+        }
+        int offset = 4 * headerCount++;
+        headerOffsets[offset] = lineStart;
+        headerOffsets[offset + 1] = colon;
+        headerOffsets[offset + 2] = valueStart;
+        headerOffsets[offset + 3] = valueEnd;
+        int nameLength = colon - lineStart;
+        int valueLength = valueEnd - valueStart;
+        if (nameLength == CONTENT_LENGTH.length
+            && regionMatches(bytes, lineStart, CONTENT_LENGTH, true)) {
+          contentLength = 0;
+          for (int i = valueStart; i < valueEnd; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9' || contentLength > MAX_REQUEST_BYTES) {
+              reject(contentLength > MAX_REQUEST_BYTES ? 413 : 400, "Bad Request");
+              return;
+            }
+            contentLength = contentLength * 10 + bytes[i] - '0';
+          }
+        } else if (nameLength == TRANSFER_ENCODING.length
+            && regionMatches(bytes, lineStart, TRANSFER_ENCODING, true)) {
+          reject(501, "Not Implemented");
+          return;
+        } else if (nameLength == CONNECTION.length
+            && regionMatches(bytes, lineStart, CONNECTION, true)) {
+          if (valueLength == CLOSE.length && regionMatches(bytes, valueStart, CLOSE, true)) {
+            keepAlive = false;
+          } else if (valueLength == KEEP_ALIVE.length
+              && regionMatches(bytes, valueStart, KEEP_ALIVE, true)) {
+            keepAlive = true;
+          }
+        }
+      }
+      if (headersEnd - requestStart + contentLength > MAX_REQUEST_BYTES) {
+        reject(413, "Payload Too Large");
+        return;
+      }
+      if (headersEnd + contentLength > end) {
+        // Wait for the rest of the body.
+        return;
+      }
+      requestEnd = (int) (headersEnd + contentLength);
+      Context context = findContext(bytes, methodEnd + 1, targetEnd);
+      if (context == null || context.handler == null) {
+        respond(404, "Not Found", keepAlive);
+        return;
+      }
+      exchange =
+          new NioHttpExchange(
+              this,
+              context,
+              method(bytes, requestStart, methodEnd),
+              http10,
+              methodEnd + 1,
+              targetEnd,
+              headersEnd,
+              (int) contentLength,
+              keepAlive);
+      // Nothing more is read until the response is written.
+      key.interestOps(0);
+      Executor executor = NioHttpServer.this.executor;
+      if (executor == null) {
+        exchange.run();
+      } else {
+        try {
+          executor.execute(exchange);
+        } catch (RejectedExecutionException e) {
+          // The exchange never runs, so answer for it and close the connection once that is sent.
+          respond(503, "Service Unavailable", false);
+        }
+      }
+    }
+
+    private String method(byte[] bytes, int start, int end) {
+      for (int i = 0; i < METHOD_BYTES.length; i++) {
+        if (METHOD_BYTES[i].length == end - start
+            && regionMatches(bytes, start, METHOD_BYTES[i], false)) {
+          return METHODS[i];
+        }
+      }
+      return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    // Responds without a handler, closing the connection unless the request was well formed.
+    private void respond(int code, String reason, boolean keepAlive) {
+      byte[] response =
+          ascii(
+              "HTTP/1.1 "
+                  + code
+                  + " "
+                  + reason
+                  + "\r\nContent-Length: 0\r\n"
+                  + (keepAlive ? "" : "Connection: close\r\n")
+                  + "\r\n");
+      key.interestOps(0);
+      complete(new ByteBuffer[] {ByteBuffer.wrap(response)}, keepAlive);
+    }
+
+    private void reject(int code, String reason) {
+      requestEnd = input.position();
+      respond(code, reason, false);
+    }
+
+    // Writes the pending output, then reads the next request once all of it was written.
+    private void flush() throws IOException {
+      if (!channel.isOpen()) {
+        return;
+      }
+      if (output == null) {
+        if (closeAfterOutput) {
+          close();
+        }
+        return;
+      }
+      channel.write(output);
+      if (output[output.length - 1].hasRemaining()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      for (ByteBuffer buffer : output) {
+        bufferPool.release(buffer);
+      }
+      output = null;
+      exchange = null;
+      lastActiveNanos = loop.nowNanos;
+      if (closeAfterOutput) {
+        close();
+        return;
+      }
+      requestStart = requestEnd;
+      headersScanned = requestStart;
+      key.interestOps(SelectionKey.OP_READ);
+      parse();
+    }
+
+    private void close() {
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.info(e.getMessage());
+      }
+      // The exchange in flight may still read the request.
+      if (input != null && exchange == null) {
+        bufferPool.release(input);
+        input = null;
+      }
+    }
+  }
+
+  private final class Context extends HttpContext {
+    private final String path;
+    private final byte[] pathBytes;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final List<Filter> filters = new ArrayList<>();
+    private volatile HttpHandler handler;
+
+    private Context(String path, HttpHandler handler) {
+      this.path = path;
+      this.pathBytes = path.getBytes(StandardCharsets.UTF_8);
+      this.handler = handler;
+    }
+
+    @Override
+    public HttpHandler getHandler() {
+      return handler;
+    }
+
+    @Override
+    public void setHandler(HttpHandler handler) {
+      if (this.handler != null) {
+        throw new IllegalArgumentException("The handler is already set");
+      }
+      this.handler = handler;
+    }
+
+    @Override
+    public String getPath() {
+      return path;
+    }
+
+    @Override
+    public com.sun.net.httpserver.HttpServer getServer() {
+      return NioHttpServer.this;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return attributes;
+    }
+
+    @Override
+    public List<Filter> getFilters() {
+      return filters;
+    }
+
+    /**
+     * Not supported, see {@link NioHttpServer}.
+     *
+     * @throws UnsupportedOperationException if the authenticator is not {@code null}.
+     */
+    @Override
+    public Authenticator setAuthenticator(Authenticator authenticator) {
+      if (authenticator != null) {
+        throw new UnsupportedOperationException("Authenticators are not supported");
+      }
+      return null;
+    }
+
+    @Override
+    public Authenticator getAuthenticator() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package httpserver;
+
+/**
+ * The request rates a route admits, in total and from each client, beyond which requests are
+ * rejected with 429 Too Many Requests.
+ *
+ * <p>A limit is written as comma separated scopes, each followed by its rate in requests per second
+ * and its burst, the requests admitted at once after an idle period:
+ *
+ * <ul>
+ *   <li>{@code path:<rate>:<burst>} limits all requests of the route.
+ *   <li>{@code client:<rate>:<burst>} limits the requests of each client address.
+ * </ul>
+ *
+ * <p>For example {@code path:1000:100,client:200:20} admits 1000 requests per second, of which a
+ * single client gets at most 200.
+ */
+public final class RateLimit {
+  /** Admits every request. */
+  public static final RateLimit UNLIMITED = new RateLimit(0, 0, 0, 0);
+
+  private final double pathRate;
+  private final int pathBurst;
+  private final double clientRate;
+  private final int clientBurst;
+
+  private RateLimit(double pathRate, int pathBurst, double clientRate, int clientBurst) {
+    this.pathRate = pathRate;
+    this.pathBurst = pathBurst;
+    this.clientRate = clientRate;
+    this.clientBurst = clientBurst;
+  }
+
+  /**
+   * Parses a rate limit.
+   *
+   * @param limit the limit, or an empty string for no limit.
+   * @return the rate limit.
+   * @throws IllegalArgumentException if the limit is invalid.
+   */
+  public static RateLimit parse(String limit) {
+    RateLimit rateLimit = UNLIMITED;
+    if (limit == null || limit.trim().isEmpty()) {
+      return rateLimit;
+    }
+    for (String scope : limit.trim().split(",")) {
+      String[] args = scope.trim().split(":");
+      if (args.length != 3) {
+        throw new IllegalArgumentException("Invalid rate limit: " + limit);
+      }
+      double rate = Double.parseDouble(args[1]);
+      int burst = Integer.parseInt(args[2]);
+      switch (args[0]) {
+        case "path":
+          rateLimit = rateLimit.withPathLimit(rate, burst);
+          break;
+        case "client":
+          rateLimit = rateLimit.withClientLimit(rate, burst);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown rate limit scope: " + limit);
+      }
+    }
+    return rateLimit;
+  }
+
+  /**
+   * Returns this limit with a limit on all requests of the route.
+   *
+   * @param requestsPerSecond the sustained rate.
+   * @param burst the requests admitted at once after an idle period, at least 1.
+   * @return the rate limit.
+   */
+  public RateLimit withPathLimit(double requestsPerSecond, int burst) {
+    checkLimit(requestsPerSecond, burst);
+    return new RateLimit(requestsPerSecond, burst, clientRate, clientBurst);
+  }
+
+  /**
+   * Returns this limit with a limit on the requests of each client address.
+   *
+   * @param requestsPerSecond the sustained rate of each client.
+   * @param burst the requests of a client admitted at once after an idle period, at least 1.
+   * @return the rate limit.
+   */
+  public RateLimit withClientLimit(double requestsPerSecond, int burst) {
+    checkLimit(requestsPerSecond, burst);
+    return new RateLimit(pathRate, pathBurst, requestsPerSecond, burst);
+  }
+
+  private static void checkLimit(double requestsPerSecond, int burst) {
+    if (!(requestsPerSecond > 0) || burst < 1) {
+      throw new IllegalArgumentException(
+          "The rate must be positive and the burst at least 1: "
+              + requestsPerSecond
+              + ", "
+              + burst);
+    }
+  }
+
+  boolean isUnlimited() {
+    return pathRate == 0 && clientRate == 0;
+  }
+
+  double getPathRate() {
+    return pathRate;
+  }
+
+  int getPathBurst() {
+    return pathBurst;
+  }
+
+  double getClientRate() {
+    return clientRate;
+  }
+
+  int getClientBurst() {
+    return clientBurst;
+  }
+}
@@ -0,0 +1,212 @@
+package httpserver;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Enforces the {@link RateLimit} of a route with token buckets, for the route and for each client.
+ *
+ * <p>Each bucket is a single theoretical arrival time (the generic cell rate algorithm): a request
+ * advances it by the interval between requests at the sustained rate, and is rejected if that would
+ * put it more than a burst of intervals ahead of now. Admitting a request is one compare-and-set,
+ * so the limiter does not serialize the requests it admits.
+ */
+final class RateLimiter {
+  // Above this many clients, the buckets that refilled are dropped, a new bucket is full anyway. If
+  // that is not enough, the buckets closest to full are dropped down to the retained clients.
+  private static final int MAX_CLIENTS = 10_000;
+  private static final int RETAINED_CLIENTS = MAX_CLIENTS * 3 / 4;
+
+  private final String path;
+  private final Bucket pathBucket;
+  private final long clientIntervalNanos;
+  private final long clientToleranceNanos;
+  private final Map<InetAddress, Bucket> clientBuckets;
+  private final AtomicBoolean evicting = new AtomicBoolean();
+  private final LongAdder pathLimited = new LongAdder();
+  private final LongAdder clientLimited = new LongAdder();
+
+  RateLimiter(String path, RateLimit rateLimit) {
+    this.path = path;
+    long nowNanos = System.nanoTime();
+    pathBucket =
+        rateLimit.getPathRate() > 0
+            ? new Bucket(
+                intervalNanos(rateLimit.getPathRate()),
+                intervalNanos(rateLimit.getPathRate()) * rateLimit.getPathBurst(),
+                nowNanos)
+            : null;
+    if (rateLimit.getClientRate() > 0) {
+      clientIntervalNanos = intervalNanos(rateLimit.getClientRate());
+      clientToleranceNanos = clientIntervalNanos * rateLimit.getClientBurst();
+      clientBuckets = new ConcurrentHashMap<>();
+    } else {
+      clientIntervalNanos = 0;
+      clientToleranceNanos = 0;
+      clientBuckets = null;
+    }
+  }
+
+  private static long intervalNanos(double requestsPerSecond) {
+    return Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond));
+  }
+
+  /**
+   * Admits a request if neither its client nor the route is over its rate.
+   *
+   * @param client the address of the client.
+   * @return {@code 0} if the request is admitted, otherwise the nanoseconds until it would be.
+   */
+  long tryAcquire(InetAddress client) {
+    long nowNanos = System.nanoTime();
+    Bucket clientBucket = null;
+    if (clientBuckets != null) {
+      clientBucket = clientBucket(client, nowNanos);
+      long waitNanos = clientBucket.tryAcquire(nowNanos);
+      if (waitNanos > 0) {
+        clientLimited.increment();
+        return waitNanos;
+      }
+    }
+    if (pathBucket != null) {
+      long waitNanos = pathBucket.tryAcquire(nowNanos);
+      if (waitNanos > 0) {
+        // The request is rejected, so it does not count against its client.
+        if (clientBucket != null) {
+          clientBucket.release();
+        }
+        pathLimited.increment();
+        return waitNanos;
+      }
+    }
+    return 0;
+  }
+
+  private Bucket clientBucket(InetAddress client, long nowNanos) {
+    Bucket bucket = clientBuckets.get(client);
+    if (bucket == null) {
+      if (clientBuckets.size() >= MAX_CLIENTS && evicting.compareAndSet(false, true)) {
+        try {
+          Iterator<Bucket> buckets = clientBuckets.values().iterator();
+          while (buckets.hasNext()) {
+            if (buckets.next().isFull(nowNanos)) {
+              buckets.remove();
+            }
+          }
+          if (clientBuckets.size() >= MAX_CLIENTS) {
+            evictClosestToFull(nowNanos);
+          }
+        } finally {
+          evicting.set(false);
+        }
+      }
+      Bucket newBucket = new Bucket(clientIntervalNanos, clientToleranceNanos, nowNanos);
+      bucket = clientBuckets.putIfAbsent(client, newBucket);
+      if (bucket == null) {
+        bucket = newBucket;
+      }
+    }
+    return bucket;
+  }
+
+  // Drops the buckets that refill first, of the clients that sent the fewest requests lately, until
+  // the retained clients are left. Their clients start over with a full bucket.
+  private void evictClosestToFull(long nowNanos) {
+    long[] fullInNanos = new long[clientBuckets.size()];
+    int count = 0;
+    for (Bucket bucket : clientBuckets.values()) {
+      if (count == fullInNanos.length) {
+        break;
+      }
+      fullInNanos[count++] = bucket.fullInNanos(nowNanos);
+    }
+    if (count <= RETAINED_CLIENTS) {
+      return;
+    }
+    Arrays.sort(fullInNanos, 0, count);
+    long thresholdNanos = fullInNanos[count - RETAINED_CLIENTS - 1];
+    clientBuckets.values().removeIf(bucket -> bucket.fullInNanos(nowNanos) <= thresholdNanos);
+  }
+
+  /**
+   * Appends the requests rejected by the limiters in the Prometheus text format.
+   *
+   * @param builder the builder to append to.
+   * @param rateLimiters the limiters of the routes.
+   */
+  static void appendTo(StringBuilder builder, List<RateLimiter> rateLimiters) {
+    builder
+        .append(
+            "# HELP http_server_requests_rate_limited_total Requests rejected with 429 by path and"
+                + " limit.\n")
+        .append("# TYPE http_server_requests_rate_limited_total counter\n");
+    for (RateLimiter rateLimiter : rateLimiters) {
+      String path = ServerMetrics.escape(rateLimiter.path);
+      if (rateLimiter.pathBucket != null) {
+        appendCount(builder, path, "path", rateLimiter.pathLimited.sum());
+      }
+      if (rateLimiter.clientBuckets != null) {
+        appendCount(builder, path, "client", rateLimiter.clientLimited.sum());
+      }
+    }
+  }
+
+  private static void appendCount(StringBuilder builder, String path, String limit, long count) {
+    builder
+        .append("http_server_requests_rate_limited_total{path=\"")
+        .append(path)
+        .append("\",limit=\"")
+        .append(limit)
+        .append("\"} ")
+        .append(count)
+        .append('\n');
+  }
+
+  private static final class Bucket {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    // The time at which the bucket is full again, in System.nanoTime() terms.
+    private final AtomicLong theoreticalArrivalNanos;
+
+    private Bucket(long intervalNanos, long toleranceNanos, long nowNanos) {
+      this.intervalNanos = intervalNanos;
+      this.toleranceNanos = toleranceNanos;
+      this.theoreticalArrivalNanos = new AtomicLong(nowNanos);
+    }
+
+    private long tryAcquire(long nowNanos) {
+      while (true) {
+        long arrivalNanos = theoreticalArrivalNanos.get();
+        long nextArrivalNanos = Math.max(arrivalNanos, nowNanos) + intervalNanos;
+        long waitNanos = nextArrivalNanos - nowNanos - toleranceNanos;
+        if (waitNanos > 0) {
+          return waitNanos;
+        }
+        if (theoreticalArrivalNanos.compareAndSet(arrivalNanos, nextArrivalNanos)) {
+          return 0;
+        }
+      }
+    }
+
+    // Returns the token of an admitted request that was rejected after all.
+    private void release() {
+      theoreticalArrivalNanos.addAndGet(-intervalNanos);
+    }
+
+    private boolean isFull(long nowNanos) {
+      return fullInNanos(nowNanos) <= 0;
+    }
+
+    private long fullInNanos(long nowNanos) {
+      return theoreticalArrivalNanos.get() - nowNanos;
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the liveness and readiness of a server.
+ *
+ * <p>A live server answers {@code /healthz}. It is ready for traffic unless it is draining, its
+ * executor has more requests queued than the limit, or its concurrency limiter shed more than the
+ * limit's fraction of the requests since the previous readiness check, measured over at least a
+ * second.
+ */
+final class Readiness {
+  private static final long RATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final byte[] HEALTHY = "ok\n".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] READY = "ready\n".getBytes(StandardCharsets.UTF_8);
+
+  private final InFlightRequests inFlightRequests;
+  private final ExecutorService executor;
+  private final ConcurrencyLimiter concurrencyLimiter;
+  private final ServerMetrics metrics;
+  private final int maxQueueDepth;
+  private final double maxShedRate;
+  // Guarded by this.
+  private long lastCheckNanos = System.nanoTime();
+  private long lastShedCount;
+  private long lastRequestCount;
+  private double shedRate;
+
+  /**
+   * Creates the readiness of a server.
+   *
+   * @param inFlightRequests the requests of the server, which is not ready while draining.
+   * @param executor the executor of the handlers, {@code null} for the dispatcher thread.
+   * @param concurrencyLimiter the concurrency limiter, {@code null} if there is none.
+   * @param metrics the metrics of the routes, which count the requests.
+   * @param maxQueueDepth the most requests queued on the executor of a ready server.
+   * @param maxShedRate the highest fraction of requests shed by a ready server.
+   */
+  Readiness(
+      InFlightRequests inFlightRequests,
+      ExecutorService executor,
+      ConcurrencyLimiter concurrencyLimiter,
+      ServerMetrics metrics,
+      int maxQueueDepth,
+      double maxShedRate) {
+    this.inFlightRequests = inFlightRequests;
+    this.executor = executor;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.metrics = metrics;
+    this.maxQueueDepth = maxQueueDepth;
+    this.maxShedRate = maxShedRate;
+  }
+
+  void handleHealth(HttpExchange httpExchange) throws IOException {
+    respond(httpExchange, 200, HEALTHY);
+  }
+
+  void handleReadiness(HttpExchange httpExchange) throws IOException {
+    String reason = check();
+    if (reason == null) {
+      respond(httpExchange, 200, READY);
+    } else {
+      respond(httpExchange, 503, ("not ready: " + reason + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /** Returns why the server is not ready, {@code null} if it is. */
+  synchronized String check() {
+    if (inFlightRequests.isDraining()) {
+      return "draining";
+    }
+    int queueDepth = queueDepth(executor);
+    if (queueDepth > maxQueueDepth) {
+      return "queue depth " + queueDepth + " > " + maxQueueDepth;
+    }
+    if (concurrencyLimiter != null) {
+      long nowNanos = System.nanoTime();
+      if (nowNanos - lastCheckNanos >= RATE_INTERVAL_NANOS) {
+        long shedCount = concurrencyLimiter.getShedCount();
+        long requestCount = metrics.getRequestCount();
+        // The shed requests are counted by the routes as well.
+        shedRate =
+            (double) (shedCount - lastShedCount) / Math.max(1, requestCount - lastRequestCount);
+        lastCheckNanos = nowNanos;
+        lastShedCount = shedCount;
+        lastRequestCount = requestCount;
+      }
+      if (shedRate > maxShedRate) {
+        return String.format("shed rate %.3f > %s", shedRate, maxShedRate);
+      }
+    }
+    return null;
+  }
+
+  private static int queueDepth(ExecutorService executor) {
+    if (executor instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) executor).getQueue().size();
+    }
+    if (executor instanceof ForkJoinPool) {
+      return ((ForkJoinPool) executor).getQueuedSubmissionCount();
+    }
+    // The dispatcher thread and virtual threads do not queue requests where they can be counted.
+    return 0;
+  }
+
+  private static void respond(HttpExchange httpExchange, int statusCode, byte[] body)
+      throws IOException {
+    httpExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    Responses.send(httpExchange, statusCode, body);
+  }
+}
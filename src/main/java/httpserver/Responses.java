@@ -0,0 +1,178 @@
+package httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes complete responses from bodies encoded once, with a {@code Content-Length} in bytes.
+ *
+ * <p>The bodies are written as they are: on the {@link HttpServer.Engine#NIO} engine the selector
+ * thread writes them to the socket directly, on the JDK engine heap bodies are written to the
+ * response stream without an intermediate copy. The bodies of the error responses, the reason
+ * phrase of their status code, are encoded once for all requests.
+ */
+public final class Responses {
+  private static final String TEXT_CONTENT_TYPE = HttpResponse.TEXT_CONTENT_TYPE;
+  private static final byte[][] STATUS_BODIES = new byte[600][];
+  private static final HttpResponse[] STATUS_RESPONSES = new HttpResponse[600];
+
+  static {
+    for (int code = 100; code < STATUS_BODIES.length; code++) {
+      String reasonPhrase = NioHttpExchange.reasonPhrase(code);
+      // Only errors get a body, some statuses such as 204 must not have one.
+      STATUS_BODIES[code] =
+          code < 400 || reasonPhrase.isEmpty()
+              ? new byte[0]
+              : (reasonPhrase + "\n").getBytes(StandardCharsets.UTF_8);
+      STATUS_RESPONSES[code] = new HttpResponse(code, STATUS_BODIES[code], TEXT_CONTENT_TYPE);
+    }
+  }
+
+  private Responses() {}
+
+  /**
+   * Returns a response whose body is the reason phrase of its status code if it is an error, shared
+   * by all requests.
+   *
+   * @param statusCode the status code.
+   * @return the response.
+   */
+  public static HttpResponse status(int statusCode) {
+    checkStatusCode(statusCode);
+    return STATUS_RESPONSES[statusCode];
+  }
+
+  /**
+   * Sends a response whose body is the reason phrase of its status code if it is an error, and
+   * closes the exchange.
+   *
+   * @param httpExchange the exchange.
+   * @param statusCode the status code.
+   * @throws IOException if the response cannot be sent.
+   */
+  public static void sendStatus(HttpExchange httpExchange, int statusCode) throws IOException {
+    checkStatusCode(statusCode);
+    byte[] body = STATUS_BODIES[statusCode];
+    if (body.length > 0) {
+      httpExchange.getResponseHeaders().set("Content-Type", TEXT_CONTENT_TYPE);
+    }
+    send(httpExchange, statusCode, body);
+  }
+
+  /**
+   * Sends the response of an {@link AsyncHttpHandler}, with its {@code Content-Type} if it has a
+   * body, and closes the exchange.
+   *
+   * @param httpExchange the exchange.
+   * @param httpResponse the response.
+   * @throws IOException if the response cannot be sent.
+   */
+  public static void send(HttpExchange httpExchange, HttpResponse httpResponse) throws IOException {
+    byte[] body = httpResponse.getBody();
+    if (body.length > 0 && httpResponse.getContentType() != null) {
+      httpExchange.getResponseHeaders().set("Content-Type", httpResponse.getContentType());
+    }
+    send(httpExchange, httpResponse.getStatusCode(), body);
+  }
+
+  /**
+   * Sends a UTF-8 text response and closes the exchange.
+   *
+   * @param httpExchange the exchange.
+   * @param statusCode the status code.
+   * @param body the body, empty for no body.
+   * @throws IOException if the response cannot be sent.
+   */
+  public static void send(HttpExchange httpExchange, int statusCode, String body)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > 0) {
+      httpExchange.getResponseHeaders().set("Content-Type", TEXT_CONTENT_TYPE);
+    }
+    send(httpExchange, statusCode, bytes);
+  }
+
+  /**
+   * Sends a response and closes the exchange. The body is not copied, it must not change until the
+   * exchange is closed.
+   *
+   * @param httpExchange the exchange.
+   * @param statusCode the status code.
+   * @param body the body, empty for no body.
+   * @throws IOException if the response cannot be sent.
+   */
+  public static void send(HttpExchange httpExchange, int statusCode, byte[] body)
+      throws IOException {
+    if (httpExchange instanceof NioHttpExchange) {
+      send(httpExchange, statusCode, ByteBuffer.wrap(body));
+      return;
+    }
+    try {
+      if (sendHeaders(httpExchange, statusCode, body.length)) {
+        try (OutputStream os = httpExchange.getResponseBody()) {
+          os.write(body);
+        }
+      }
+    } finally {
+      httpExchange.close();
+    }
+  }
+
+  /**
+   * Sends the remaining bytes of a buffer as a response and closes the exchange. The buffer is not
+   * consumed, so a body can be shared by concurrent responses, and it is not copied on the {@link
+   * HttpServer.Engine#NIO} engine, its content must not change until the exchange is closed.
+   *
+   * @param httpExchange the exchange.
+   * @param statusCode the status code.
+   * @param body the body, heap or direct.
+   * @throws IOException if the response cannot be sent.
+   */
+  public static void send(HttpExchange httpExchange, int statusCode, ByteBuffer body)
+      throws IOException {
+    try {
+      if (!sendHeaders(httpExchange, statusCode, body.remaining())) {
+        return;
+      }
+      OutputStream os = httpExchange.getResponseBody();
+      if (httpExchange instanceof NioHttpExchange) {
+        if (os instanceof AccessLog.CountingOutputStream) {
+          ((AccessLog.CountingOutputStream) os).addCount(body.remaining());
+        }
+        ((NioHttpExchange) httpExchange).sendResponseBody(body);
+      } else if (body.hasArray()) {
+        try (OutputStream closed = os) {
+          closed.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        }
+      } else {
+        // The stream needs an array, the channel copies the direct buffer into one.
+        try (OutputStream closed = os) {
+          Channels.newChannel(closed).write(body.duplicate());
+        }
+      }
+    } finally {
+      httpExchange.close();
+    }
+  }
+
+  // Sends the headers, returns whether the body must be written.
+  private static boolean sendHeaders(HttpExchange httpExchange, int statusCode, int bodyLength)
+      throws IOException {
+    if (bodyLength == 0 || "HEAD".equals(httpExchange.getRequestMethod())) {
+      httpExchange.sendResponseHeaders(statusCode, -1);
+      return false;
+    }
+    httpExchange.sendResponseHeaders(statusCode, bodyLength);
+    return true;
+  }
+
+  private static void checkStatusCode(int statusCode) {
+    if (statusCode < 100 || statusCode >= STATUS_BODIES.length) {
+      throw new IllegalArgumentException("Invalid status code: " + statusCode);
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request rate, errors and duration of every route of a server, served in the Prometheus text
+ * format.
+ *
+ * <p>The counters are striped {@link LongAdder}s and the durations are counted in fixed buckets, so
+ * recording a request does not allocate or contend once a route has seen its status codes.
+ */
+final class ServerMetrics implements HttpHandler {
+  // The upper bounds of the duration buckets, in seconds.
+  private static final double[] BUCKET_BOUNDS = {
+    0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+  };
+  private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS.length];
+
+  static {
+    for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+      BUCKET_BOUNDS_NANOS[i] = (long) (BUCKET_BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+    }
+  }
+
+  private final Map<String, Route> routes = new ConcurrentSkipListMap<>();
+  private final List<Source> sources = new CopyOnWriteArrayList<>();
+
+  /**
+   * Returns the metrics of a route, created on first use.
+   *
+   * @param path the path the route's handler is registered for.
+   * @return the metrics of the route.
+   */
+  Route getRoute(String path) {
+    return routes.computeIfAbsent(path, ignored -> new Route());
+  }
+
+  /**
+   * Adds metrics that are not kept per route.
+   *
+   * @param source appends the metrics.
+   */
+  void addSource(Source source) {
+    sources.add(source);
+  }
+
+  /** Returns the number of completed requests of all routes. */
+  long getRequestCount() {
+    long count = 0;
+    for (Route route : routes.values()) {
+      for (LongAdder bucketCount : route.bucketCounts) {
+        count += bucketCount.sum();
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public void handle(HttpExchange httpExchange) throws IOException {
+    byte[] body = format().getBytes(StandardCharsets.UTF_8);
+    httpExchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+    Responses.send(httpExchange, 200, body);
+  }
+
+  /** Returns all metrics in the Prometheus text format. */
+  String format() {
+    StringBuilder builder = new StringBuilder();
+    builder
+        .append("# HELP http_server_requests_total Completed requests by path and status code.\n")
+        .append("# TYPE http_server_requests_total counter\n");
+    for (Map.Entry<String, Route> route : routes.entrySet()) {
+      for (int code = 0; code < Route.STATUS_CODES; code++) {
+        LongAdder count = route.getValue().statusCounts.get(code);
+        if (count != null) {
+          builder
+              .append("http_server_requests_total{path=\"")
+              .append(escape(route.getKey()))
+              .append("\",code=\"")
+              .append(code)
+              .append("\"} ")
+              .append(count.sum())
+              .append('\n');
+        }
+      }
+    }
+    builder
+        .append("# HELP http_server_requests_in_flight Requests being handled by path.\n")
+        .append("# TYPE http_server_requests_in_flight gauge\n");
+    for (Map.Entry<String, Route> route : routes.entrySet()) {
+      builder
+          .append("http_server_requests_in_flight{path=\"")
+          .append(escape(route.getKey()))
+          .append("\"} ")
+          .append(route.getValue().inFlight.sum())
+          .append('\n');
+    }
+    builder
+        .append("# HELP http_server_request_duration_seconds Request duration by path.\n")
+        .append("# TYPE http_server_request_duration_seconds histogram\n");
+    for (Map.Entry<String, Route> route : routes.entrySet()) {
+      String path = escape(route.getKey());
+      long cumulativeCount = 0;
+      for (int i = 0; i <= BUCKET_BOUNDS.length; i++) {
+        cumulativeCount += route.getValue().bucketCounts[i].sum();
+        builder
+            .append("http_server_request_duration_seconds_bucket{path=\"")
+            .append(path)
+            .append("\",le=\"")
+            .append(
+                i < BUCKET_BOUNDS.length
+                    ? BigDecimal.valueOf(BUCKET_BOUNDS[i]).toPlainString()
+                    : "+Inf")
+            .append("\"} ")
+            .append(cumulativeCount)
+            .append('\n');
+      }
+      builder
+          .append("http_server_request_duration_seconds_sum{path=\"")
+          .append(path)
+          .append("\"} ")
+          .append(route.getValue().durationNanos.sum() / 1e9)
+          .append('\n')
+          .append("http_server_request_duration_seconds_count{path=\"")
+          .append(path)
+          .append("\"} ")
+          .append(cumulativeCount)
+          .append('\n');
+    }
+    for (Source source : sources) {
+      source.appendTo(builder);
+    }
+    return builder.toString();
+  }
+
+  static String escape(String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  /** Metrics of a server component that are not kept per route. */
+  interface Source {
+    /**
+     * Appends the metrics in the Prometheus text format, including their HELP and TYPE lines.
+     *
+     * @param builder the builder to append to.
+     */
+    void appendTo(StringBuilder builder);
+  }
+
+  /** The metrics of the requests of one registered path. */
+  static final class Route {
+    // Status codes from 0, no response was sent, to 599.
+    private static final int STATUS_CODES = 600;
+
+    private final LongAdder inFlight = new LongAdder();
+    private final AtomicReferenceArray<LongAdder> statusCounts =
+        new AtomicReferenceArray<>(STATUS_CODES);
+    private final LongAdder[] bucketCounts = new LongAdder[BUCKET_BOUNDS.length + 1];
+    private final LongAdder durationNanos = new LongAdder();
+
+    private Route() {
+      for (int i = 0; i < bucketCounts.length; i++) {
+        bucketCounts[i] = new LongAdder();
+      }
+    }
+
+    /** Records the start of a request. */
+    void start() {
+      inFlight.increment();
+    }
+
+    /**
+     * Records the end of a request.
+     *
+     * @param statusCode the response status code, {@code -1} or {@code 0} if none was sent.
+     * @param durationNanos the time from the start of the request.
+     */
+    void end(int statusCode, long durationNanos) {
+      inFlight.decrement();
+      int code = statusCode > 0 && statusCode < STATUS_CODES ? statusCode : 0;
+      LongAdder count = statusCounts.get(code);
+      if (count == null) {
+        statusCounts.compareAndSet(code, null, new LongAdder());
+        count = statusCounts.get(code);
+      }
+      count.increment();
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_NANOS.length && durationNanos > BUCKET_BOUNDS_NANOS[bucket]) {
+        bucket++;
+      }
+      bucketCounts[bucket].increment();
+      this.durationNanos.add(durationNanos);
+    }
+  }
+}
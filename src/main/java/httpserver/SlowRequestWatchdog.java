@@ -0,0 +1,228 @@
+package httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import io.grpc.Context;
+import io.opentelemetry.common.AttributeValue;
+import io.opentelemetry.trace.Span;
+import io.opentelemetry.trace.TracingContextUtils;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import threadutil.ThreadUtil;
+
+/**
+ * Reports the requests that take longer than a threshold, with a sample of the stack of the thread
+ * handling them, which shows where they are stuck without a profiler.
+ *
+ * <p>A scanner thread checks the requests in flight a few times per threshold. The first time a
+ * request is over the threshold, the stack of its thread is logged and added to the current span of
+ * the request as a {@code slow_request} event. Taking a stack pauses the sampled thread, so at most
+ * a given number of stacks are taken per second, the other slow requests are only counted.
+ */
+final class SlowRequestWatchdog implements ServerMetrics.Source, AutoCloseable {
+  private static final Logger logger = Logger.getLogger(SlowRequestWatchdog.class.getName());
+  private static final Context.Key<Request> REQUEST_KEY = Context.key("slow-request-watchdog");
+  private static final int MAX_FRAMES = 64;
+  private static final long SAMPLE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final long thresholdNanos;
+  private final int maxSamplesPerSecond;
+  private final Set<Request> requests = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService scanner;
+  private final LongAdder slowRequests = new LongAdder();
+  private final LongAdder samples = new LongAdder();
+  // Only accessed by the scanner thread.
+  private long windowStartNanos = System.nanoTime();
+  private int windowSamples;
+
+  /**
+   * Starts the watchdog of a server.
+   *
+   * @param thresholdNanos the time after which a request is slow.
+   * @param maxSamplesPerSecond the most stacks taken per second.
+   * @param threadNamePrefix the name prefix of the scanner thread.
+   */
+  SlowRequestWatchdog(long thresholdNanos, int maxSamplesPerSecond, String threadNamePrefix) {
+    this.thresholdNanos = thresholdNanos;
+    this.maxSamplesPerSecond = maxSamplesPerSecond;
+    long periodNanos =
+        Math.min(
+            Math.max(thresholdNanos / 4, TimeUnit.MILLISECONDS.toNanos(10)), SAMPLE_WINDOW_NANOS);
+    scanner =
+        Executors.newSingleThreadScheduledExecutor(ThreadUtil.newThreadFactory(threadNamePrefix));
+    scanner.scheduleWithFixedDelay(this::scan, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Starts watching a request handled by the current thread.
+   *
+   * @param httpExchange the exchange of the request.
+   * @param startNanos the arrival time of the request.
+   * @param context the context of the request, whose span gets the stacks.
+   * @return the watched request, to pass to {@link #end(Request)}.
+   */
+  Request start(HttpExchange httpExchange, long startNanos, Context context) {
+    Request request =
+        new Request(
+            httpExchange.getRequestMethod() + " " + httpExchange.getRequestURI(),
+            startNanos,
+            TracingContextUtils.getSpan(context));
+    requests.add(request);
+    return request;
+  }
+
+  /** Stops watching a request once its response is sent. */
+  void end(Request request) {
+    requests.remove(request);
+  }
+
+  /**
+   * Returns the context of the current thread with a watched request, so that the threads the
+   * request continues on are sampled as well.
+   */
+  static Context withRequest(Context context, Request request) {
+    return context.withValue(REQUEST_KEY, request);
+  }
+
+  /**
+   * Wraps an executor so that its tasks run in the context of the request that submitted them: its
+   * deadline, its span, and its watched thread if the server has a slow-request watchdog.
+   *
+   * @param executor the executor to wrap.
+   * @return the wrapped executor.
+   */
+  static Executor contextExecutor(Executor executor) {
+    return task -> {
+      Context context = Context.current();
+      executor.execute(
+          () -> {
+            Request request = REQUEST_KEY.get(context);
+            if (request != null) {
+              request.thread.set(Thread.currentThread());
+            }
+            Context previous = context.attach();
+            try {
+              task.run();
+            } finally {
+              context.detach(previous);
+              if (request != null) {
+                request.leave();
+              }
+            }
+          });
+    };
+  }
+
+  private void scan() {
+    long nowNanos = System.nanoTime();
+    if (nowNanos - windowStartNanos >= SAMPLE_WINDOW_NANOS) {
+      windowStartNanos = nowNanos;
+      windowSamples = 0;
+    }
+    for (Request request : requests) {
+      long elapsedNanos = nowNanos - request.startNanos;
+      if (request.reported || elapsedNanos < thresholdNanos) {
+        continue;
+      }
+      request.reported = true;
+      slowRequests.increment();
+      Thread thread = request.thread.get();
+      if (windowSamples >= maxSamplesPerSecond) {
+        continue;
+      }
+      windowSamples++;
+      samples.increment();
+      report(request, thread, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+    }
+  }
+
+  private static void report(Request request, Thread thread, long elapsedMillis) {
+    StringBuilder stack = new StringBuilder();
+    String threadName;
+    if (thread == null) {
+      // An asynchronous handler returned, and its response is prepared by a thread it did not
+      // submit through contextExecutor().
+      threadName = "none";
+      stack.append("\tno thread is handling the request\n");
+    } else {
+      threadName = thread.getName();
+      StackTraceElement[] frames = thread.getStackTrace();
+      for (int i = 0; i < Math.min(frames.length, MAX_FRAMES); i++) {
+        stack.append("\tat ").append(frames[i]).append('\n');
+      }
+      if (frames.length > MAX_FRAMES) {
+        stack.append("\t... ").append(frames.length - MAX_FRAMES).append(" more\n");
+      }
+    }
+    logger.warning(
+        "Slow request "
+            + request.description
+            + " after "
+            + elapsedMillis
+            + " ms on thread "
+            + threadName
+            + ":\n"
+            + stack);
+    if (request.span.isRecording()) {
+      Map<String, AttributeValue> attributes = new HashMap<>();
+      attributes.put("thread.name", AttributeValue.stringAttributeValue(threadName));
+      attributes.put("elapsed_ms", AttributeValue.longAttributeValue(elapsedMillis));
+      attributes.put("stack", AttributeValue.stringAttributeValue(stack.toString()));
+      request.span.addEvent("slow_request", attributes);
+    }
+  }
+
+  @Override
+  public void close() {
+    scanner.shutdownNow();
+  }
+
+  @Override
+  public void appendTo(StringBuilder builder) {
+    builder
+        .append(
+            "# HELP http_server_slow_requests_total Requests over the slow request threshold.\n")
+        .append("# TYPE http_server_slow_requests_total counter\n")
+        .append("http_server_slow_requests_total ")
+        .append(slowRequests.sum())
+        .append('\n')
+        .append(
+            "# HELP http_server_slow_request_samples_total Stacks sampled from slow requests.\n")
+        .append("# TYPE http_server_slow_request_samples_total counter\n")
+        .append("http_server_slow_request_samples_total ")
+        .append(samples.sum())
+        .append('\n');
+  }
+
+  /** A request in flight. */
+  static final class Request {
+    private final String description;
+    private final long startNanos;
+    private final Span span;
+    // The thread currently handling the request, null while none is.
+    private final AtomicReference<Thread> thread = new AtomicReference<>(Thread.currentThread());
+    // Only accessed by the scanner thread.
+    private boolean reported;
+
+    private Request(String description, long startNanos, Span span) {
+      this.description = description;
+      this.startNanos = startNanos;
+      this.span = span;
+    }
+
+    /**
+     * Forgets the current thread once it is done with the request, unless another thread took over.
+     */
+    void leave() {
+      thread.compareAndSet(Thread.currentThread(), null);
+    }
+  }
+}
@@ -0,0 +1,262 @@
+package httpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Appends the arrival time and target of every request to a compact binary log, which the load
+ * generator can replay.
+ *
+ * <p>The file starts with an 8 byte header, followed by one record per request: the arrival time in
+ * microseconds since the epoch (8 bytes), the length of the target (2 bytes, unsigned) and the
+ * UTF-8 encoded target, the path and query of the request.
+ *
+ * <p>Like the {@link AccessLog}, the request threads only record their requests into a ring buffer,
+ * a background thread writes them to the file. Requests are dropped and counted if the buffer is
+ * full because the disk falls behind.
+ */
+public final class TrafficCapture implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(TrafficCapture.class.getName());
+  private static final byte[] HEADER = "OTELCAP1".getBytes(StandardCharsets.US_ASCII);
+  private static final int MAX_TARGET_LENGTH = 0xFFFF;
+  // Holds at least one record of the longest target.
+  private static final int BUFFER_SIZE = 128 * 1024;
+  private static final int CAPACITY = 16 * 1024;
+  private static final int MASK = CAPACITY - 1;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+  private final FileChannel channel;
+  // Arrival times are measured with System.nanoTime() from this point in time.
+  private final long startEpochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+  private final long startNanos = System.nanoTime();
+  // The slots of the ring buffer, claimed and published like those of the AccessLog.
+  private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+  private final long[] arrivalMicros = new long[CAPACITY];
+  private final String[] targets = new String[CAPACITY];
+  private final AtomicLong claimed = new AtomicLong();
+  private final LongAdder dropped = new LongAdder();
+  private final Thread writerThread;
+  private volatile boolean closed;
+  // Only accessed by the writer thread.
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private long drained;
+  private long skipped;
+
+  private TrafficCapture(FileChannel channel) {
+    this.channel = channel;
+    for (int i = 0; i < CAPACITY; i++) {
+      sequences.set(i, i);
+    }
+    writerThread = new Thread(this::run, "traffic-capture");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Creates a new capture file, replacing an existing one.
+   *
+   * @param path the path of the capture file.
+   * @return the capture, which must be closed to write the last requests.
+   * @throws IOException if the file cannot be created.
+   */
+  public static TrafficCapture create(Path path) throws IOException {
+    FileChannel channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+    channel.write(ByteBuffer.wrap(HEADER));
+    logger.info("Capturing requests to " + path);
+    return new TrafficCapture(channel);
+  }
+
+  /**
+   * Appends a request that arrived now, or drops it if the buffer is full or the capture is closed.
+   *
+   * @param target the path and query of the request.
+   */
+  void append(String target) {
+    if (closed) {
+      return;
+    }
+    long position = claimed.get();
+    while (true) {
+      int slot = (int) (position & MASK);
+      long available = sequences.get(slot) - position;
+      if (available == 0) {
+        if (claimed.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = claimed.get();
+      } else if (available < 0) {
+        // The writer thread has not freed the slot of the previous lap yet.
+        dropped.increment();
+        return;
+      } else {
+        position = claimed.get();
+      }
+    }
+    int slot = (int) (position & MASK);
+    arrivalMicros[slot] =
+        startEpochMicros + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    targets[slot] = target;
+    // Publishes the request to the writer thread.
+    sequences.lazySet(slot, position + 1);
+  }
+
+  private void run() {
+    while (true) {
+      boolean wasClosed = closed;
+      if (drain() > 0) {
+        flush();
+      } else if (wasClosed) {
+        break;
+      } else {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.info(e.getMessage());
+    }
+  }
+
+  // Encodes the published requests into the buffer, writing it whenever it is full.
+  private int drain() {
+    int count = 0;
+    while (true) {
+      int slot = (int) (drained & MASK);
+      if (sequences.get(slot) != drained + 1) {
+        return count;
+      }
+      byte[] bytes = targets[slot].getBytes(StandardCharsets.UTF_8);
+      if (bytes.length > MAX_TARGET_LENGTH) {
+        skipped++;
+      } else {
+        if (buffer.remaining() < Long.BYTES + Short.BYTES + bytes.length) {
+          flush();
+        }
+        buffer.putLong(arrivalMicros[slot]).putShort((short) bytes.length).put(bytes);
+      }
+      targets[slot] = null;
+      // Frees the slot for the next lap.
+      sequences.lazySet(slot, drained + CAPACITY);
+      drained++;
+      count++;
+    }
+  }
+
+  private void flush() {
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (IOException e) {
+      logger.info(e.getMessage());
+    }
+    buffer.clear();
+  }
+
+  /** Writes the recorded requests and closes the file, later requests are not captured. */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (skipped > 0) {
+      logger.info(
+          "Skipped " + skipped + " requests with a target longer than " + MAX_TARGET_LENGTH);
+    }
+    if (dropped.sum() > 0) {
+      logger.info("Dropped " + dropped.sum() + " requests on a full buffer");
+    }
+  }
+
+  /**
+   * Opens a capture file for reading.
+   *
+   * @param path the path of the capture file.
+   * @return a reader positioned before the first request.
+   * @throws IOException if the file cannot be read or is not a capture file.
+   */
+  public static Reader read(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(path + ": capture files larger than 2 GiB are not supported");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      byte[] header = new byte[HEADER.length];
+      if (buffer.remaining() < header.length) {
+        throw new IOException(path + ": not a capture file");
+      }
+      buffer.get(header);
+      if (!Arrays.equals(header, HEADER)) {
+        throw new IOException(path + ": not a capture file");
+      }
+      return new Reader(buffer);
+    }
+  }
+
+  /** Reads the requests of a memory mapped capture file, in arrival order. */
+  public static final class Reader {
+    private final ByteBuffer buffer;
+    private long arrivalMicros;
+    private String target;
+
+    private Reader(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    /**
+     * Moves to the next request.
+     *
+     * @return {@code false} if there is no next request.
+     */
+    public boolean next() {
+      if (buffer.remaining() < Long.BYTES + Short.BYTES) {
+        return false;
+      }
+      long nextArrivalMicros = buffer.getLong();
+      int length = buffer.getShort() & MAX_TARGET_LENGTH;
+      if (buffer.remaining() < length) {
+        // A truncated last record, written by a server that did not shut down cleanly.
+        buffer.position(buffer.limit());
+        return false;
+      }
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      arrivalMicros = nextArrivalMicros;
+      target = new String(bytes, StandardCharsets.UTF_8);
+      return true;
+    }
+
+    /** Returns the arrival time of the current request in microseconds since the epoch. */
+    public long getArrivalMicros() {
+      return arrivalMicros;
+    }
+
+    /** Returns the path and query of the current request. */
+    public String getTarget() {
+      return target;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package loadgenerator;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import loadgenerator.LoadProfile.Phase;
+import loadgenerator.OpenLoopDriver.Sender;
+import threadutil.ThreadUtil;
+
+/**
+ * Runs a fixed number of virtual users, each sending a request, waiting for the response and then
+ * pausing for a think time before sending the next one.
+ *
+ * <p>Every user runs on its own virtual thread (a platform thread before Java 21), so the number of
+ * concurrent requests matches the number of users, like a population of real clients.
+ */
+final class ClosedLoopDriver implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(ClosedLoopDriver.class.getName());
+
+  private final Sender sender;
+  private final int users;
+  private final long thinkTimeMillis;
+  private final ExecutorService userThreads;
+  private final Thread controller;
+  private volatile boolean running;
+
+  /**
+   * Creates a driver that is started with {@link #start()}.
+   *
+   * @param sender sends one request.
+   * @param users the number of concurrent virtual users.
+   * @param thinkTimeMillis the pause of a user between a response and its next request.
+   */
+  ClosedLoopDriver(Sender sender, int users, long thinkTimeMillis) {
+    if (users <= 0) {
+      throw new IllegalArgumentException("users must be positive");
+    }
+    this.sender = sender;
+    this.users = users;
+    this.thinkTimeMillis = thinkTimeMillis;
+    this.userThreads = ThreadUtil.newVirtualThreadPerTaskExecutor("load-generator-user-");
+    // Virtual threads are daemon threads, this one keeps the JVM alive while the users run.
+    this.controller = new Thread(this::control, "load-generator-controller");
+  }
+
+  void start() {
+    running = true;
+    controller.start();
+    logger.info("Closed loop started with " + users + " users");
+  }
+
+  private void control() {
+    for (int i = 0; i < users; i++) {
+      userThreads.execute(this::runUser);
+    }
+    try {
+      while (!userThreads.awaitTermination(1, TimeUnit.SECONDS)) {
+        // Keep waiting until the driver is closed.
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void runUser() {
+    try {
+      // Spread the first requests over one think time, so the users do not run in lockstep.
+      if (thinkTimeMillis > 0) {
+        Thread.sleep(ThreadLocalRandom.current().nextLong(thinkTimeMillis));
+      }
+      while (running) {
+        try {
+          // A user waits for its response, also if the sender is asynchronous.
+          sender.send(System.nanoTime(), Phase.RUN).join();
+        } catch (RuntimeException e) {
+          // The user carries on like after a failed response, to keep the concurrency constant.
+          logger.warning("Request failed: " + e);
+        }
+        if (thinkTimeMillis > 0) {
+          Thread.sleep(thinkTimeMillis);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    userThreads.shutdownNow();
+  }
+}
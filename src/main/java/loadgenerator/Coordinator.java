@@ -0,0 +1,129 @@
+package loadgenerator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Splits a load profile between several {@link Worker} processes and merges their results.
+ *
+ * <p>The coordinator waits for all workers to connect to its control socket, sends each of them the
+ * profile, its share of the request rate and a common start time, and then waits for the latency
+ * histograms of every worker. The merged results are recorded in the coordinator's {@link
+ * LatencyRecorder}, which prints and reports them like the results of a single process.
+ *
+ * <p>Messages are written with {@link DataOutputStream}: the coordinator sends the number of
+ * profile lines, the lines, the rate share and the start time in milliseconds since the epoch; the
+ * worker answers with {@link LatencyRecorder#writeTotals(DataOutputStream)} once its run ended.
+ */
+final class Coordinator implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(Coordinator.class.getName());
+  // Leaves the workers time to receive the profile and to start their drivers.
+  private static final long START_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+  private final LatencyRecorder latencyRecorder;
+  private final int port;
+  private final int workers;
+  private final Path profile;
+  private final List<Socket> sockets = new ArrayList<>();
+  private volatile ServerSocket serverSocket;
+  private volatile boolean closed;
+
+  /**
+   * Creates a coordinator that is run with {@link #run()}.
+   *
+   * @param latencyRecorder the recorder to merge the results of the workers into.
+   * @param port the port of the control socket.
+   * @param workers the number of workers to wait for.
+   * @param profile the load profile file to split between the workers.
+   */
+  Coordinator(LatencyRecorder latencyRecorder, int port, int workers, Path profile) {
+    if (workers <= 0) {
+      throw new IllegalArgumentException("The number of workers must be positive: " + workers);
+    }
+    this.latencyRecorder = latencyRecorder;
+    this.port = port;
+    this.workers = workers;
+    this.profile = profile;
+  }
+
+  /**
+   * Runs the profile on all workers and merges their results.
+   *
+   * @return {@code true} if the results of all workers were merged, {@code false} if the
+   *     coordinator was closed first.
+   * @throws IOException if the profile cannot be read or a worker disconnects.
+   */
+  boolean run() throws IOException {
+    List<String> lines = Files.readAllLines(profile, StandardCharsets.UTF_8);
+    // Fail here rather than in every worker.
+    LoadProfile.parse(profile.toString(), lines);
+    try {
+      serverSocket = new ServerSocket();
+      serverSocket.bind(new InetSocketAddress(port));
+      logger.info("Waiting for " + workers + " worker(s) on port " + port);
+      while (sockets.size() < workers) {
+        Socket socket = serverSocket.accept();
+        synchronized (sockets) {
+          sockets.add(socket);
+        }
+        logger.info("Worker " + sockets.size() + " connected from " + socket.getInetAddress());
+      }
+      long startEpochMillis = System.currentTimeMillis() + START_DELAY_MILLIS;
+      for (Socket socket : sockets) {
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeInt(lines.size());
+        for (String line : lines) {
+          out.writeUTF(line);
+        }
+        out.writeDouble(1.0 / workers);
+        out.writeLong(startEpochMillis);
+        out.flush();
+      }
+      logger.info("Started " + workers + " worker(s)");
+      for (Socket socket : sockets) {
+        latencyRecorder.readTotals(
+            new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+      }
+      logger.info("Merged the results of " + workers + " worker(s)");
+      return true;
+    } catch (IOException e) {
+      if (closed) {
+        return false;
+      }
+      throw e;
+    } finally {
+      close();
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      if (serverSocket != null) {
+        serverSocket.close();
+      }
+      synchronized (sockets) {
+        for (Socket socket : sockets) {
+          socket.close();
+        }
+      }
+    } catch (IOException e) {
+      logger.info(e.getMessage());
+    }
+  }
+}
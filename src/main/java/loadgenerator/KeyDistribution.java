@@ -0,0 +1,139 @@
+package loadgenerator;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Chooses the Redis key of each request.
+ *
+ * <p>A distribution is written as its name followed by colon separated parameters:
+ *
+ * <ul>
+ *   <li>{@code uniform:<keys>} every key is equally likely.
+ *   <li>{@code zipf:<keys>:<exponent>} the n-th key is chosen with a probability proportional to
+ *       {@code 1 / n^exponent}.
+ *   <li>{@code hotspot:<keys>:<hot key fraction>:<hot request fraction>} a fraction of the keys
+ *       receives a fraction of the requests, for example {@code hotspot:1000:0.01:0.9} sends 90% of
+ *       the requests to 10 keys.
+ * </ul>
+ */
+abstract class KeyDistribution {
+  private static final String KEY_PREFIX = "key-";
+
+  private KeyDistribution() {}
+
+  /**
+   * Parses a key distribution.
+   *
+   * @param distribution the distribution, or an empty string to send no key.
+   * @return the key distribution, or {@code null} if no key should be sent.
+   * @throws IllegalArgumentException if the distribution is invalid.
+   */
+  static KeyDistribution parse(String distribution) {
+    if (distribution == null || distribution.trim().isEmpty()) {
+      return null;
+    }
+    String[] args = distribution.trim().split(":");
+    switch (args[0]) {
+      case "uniform":
+        checkArguments(distribution, args, 2);
+        return new Uniform(parseKeys(args[1]));
+      case "zipf":
+        checkArguments(distribution, args, 3);
+        return new Zipf(parseKeys(args[1]), Double.parseDouble(args[2]));
+      case "hotspot":
+        checkArguments(distribution, args, 4);
+        return new Hotspot(
+            parseKeys(args[1]),
+            parseFraction(distribution, args[2]),
+            parseFraction(distribution, args[3]));
+      default:
+        throw new IllegalArgumentException("Unknown key distribution: " + distribution);
+    }
+  }
+
+  private static void checkArguments(String distribution, String[] args, int expected) {
+    if (args.length != expected) {
+      throw new IllegalArgumentException("Invalid key distribution: " + distribution);
+    }
+  }
+
+  private static int parseKeys(String value) {
+    int keys = Integer.parseInt(value);
+    if (keys <= 0) {
+      throw new IllegalArgumentException("The number of keys must be positive: " + value);
+    }
+    return keys;
+  }
+
+  private static double parseFraction(String distribution, String value) {
+    double fraction = Double.parseDouble(value);
+    if (!(fraction >= 0 && fraction <= 1)) {
+      throw new IllegalArgumentException("Invalid fraction in key distribution: " + distribution);
+    }
+    return fraction;
+  }
+
+  /** Returns a random key. */
+  final String next(Random random) {
+    return KEY_PREFIX + nextIndex(random);
+  }
+
+  abstract int nextIndex(Random random);
+
+  private static final class Uniform extends KeyDistribution {
+    private final int keys;
+
+    private Uniform(int keys) {
+      this.keys = keys;
+    }
+
+    @Override
+    int nextIndex(Random random) {
+      return random.nextInt(keys);
+    }
+  }
+
+  private static final class Zipf extends KeyDistribution {
+    private final double[] cumulativeProbabilities;
+
+    private Zipf(int keys, double exponent) {
+      cumulativeProbabilities = new double[keys];
+      double total = 0;
+      for (int i = 0; i < keys; i++) {
+        total += 1 / Math.pow(i + 1, exponent);
+        cumulativeProbabilities[i] = total;
+      }
+      for (int i = 0; i < keys; i++) {
+        cumulativeProbabilities[i] /= total;
+      }
+    }
+
+    @Override
+    int nextIndex(Random random) {
+      int index = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble());
+      // A negative result is the insertion point, the first key with a larger cumulative value.
+      return Math.min(index < 0 ? -index - 1 : index, cumulativeProbabilities.length - 1);
+    }
+  }
+
+  private static final class Hotspot extends KeyDistribution {
+    private final int keys;
+    private final int hotKeys;
+    private final double hotRequestFraction;
+
+    private Hotspot(int keys, double hotKeyFraction, double hotRequestFraction) {
+      this.keys = keys;
+      this.hotKeys = Math.max(1, Math.min(keys, (int) Math.round(keys * hotKeyFraction)));
+      this.hotRequestFraction = hotRequestFraction;
+    }
+
+    @Override
+    int nextIndex(Random random) {
+      if (hotKeys == keys || random.nextDouble() < hotRequestFraction) {
+        return random.nextInt(hotKeys);
+      }
+      return hotKeys + random.nextInt(keys - hotKeys);
+    }
+  }
+}
@@ -0,0 +1,356 @@
+package loadgenerator;
+
+import httputil.HttpUtil;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import loadgenerator.LoadProfile.Phase;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Records request latencies in microseconds, per load profile phase and operation.
+ *
+ * <p>Latencies are measured from the time a request was supposed to be sent, not from the time it
+ * was actually sent, so that time spent waiting behind slow requests is not hidden from the results
+ * (coordinated omission).
+ */
+final class LatencyRecorder {
+  private static final int SIGNIFICANT_DIGITS = 3;
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+  private final ConcurrentMap<String, ConcurrentMap<String, OperationStats>> stats =
+      new ConcurrentHashMap<>();
+  // Only accessed while holding the lock of this object.
+  private final Map<String, Map<String, Histogram>> totals = new TreeMap<>();
+  private long intervalStartNanos = System.nanoTime();
+  private final long runStartNanos = intervalStartNanos;
+  // Converts System.nanoTime() to the time since the epoch, to exchange times between processes.
+  private final long epochOffsetNanos =
+      TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+  /**
+   * Records the latency of a completed request.
+   *
+   * @param phase the load profile phase the request was sent in, not recorded if {@link
+   *     Phase#isRecorded()} is {@code false}.
+   * @param operation the name of the operation.
+   * @param statusCode the HTTP response status code, {@code 0} if no response was received.
+   * @param intendedStartNanos the {@link System#nanoTime()} at which the request should have been
+   *     sent.
+   * @param expectedIntervalMicros the expected interval between two requests of a closed loop
+   *     sender, used to back-fill the samples that a stalled sender did not take. {@code 0} if the
+   *     latency is already measured from the intended start time.
+   */
+  void record(
+      Phase phase,
+      String operation,
+      int statusCode,
+      long intendedStartNanos,
+      long expectedIntervalMicros) {
+    if (!phase.isRecorded()) {
+      return;
+    }
+    long nowNanos = System.nanoTime();
+    long latencyMicros = TimeUnit.NANOSECONDS.toMicros(nowNanos - intendedStartNanos);
+    OperationStats operationStats =
+        stats
+            .computeIfAbsent(phase.getName(), ignored -> new ConcurrentHashMap<>())
+            .computeIfAbsent(operation, ignored -> new OperationStats());
+    operationStats.recorder.recordValueWithExpectedInterval(
+        Math.max(latencyMicros, 0), expectedIntervalMicros);
+    operationStats.statusCounts.computeIfAbsent(statusCode, ignored -> new LongAdder()).increment();
+    operationStats.firstStartNanos.accumulate(intendedStartNanos);
+    operationStats.lastEndNanos.accumulate(nowNanos);
+  }
+
+  /**
+   * Returns the latencies of all operations of a phase, recorded since the start of the run.
+   *
+   * @param phase the name of the phase.
+   * @return a new histogram, empty if nothing was recorded in the phase.
+   */
+  synchronized Histogram getTotalHistogram(String phase) {
+    collectInterval();
+    Histogram histogram = new Histogram(SIGNIFICANT_DIGITS);
+    for (Histogram operation : totals.getOrDefault(phase, Collections.emptyMap()).values()) {
+      histogram.add(operation);
+    }
+    return histogram;
+  }
+
+  /**
+   * Returns the number of responses per HTTP status code in a phase.
+   *
+   * @param phase the name of the phase.
+   * @return the counts by status code, {@code 0} counts the requests that received no response.
+   */
+  Map<Integer, Long> getStatusCounts(String phase) {
+    Map<Integer, Long> counts = new TreeMap<>();
+    for (OperationStats operationStats :
+        stats.getOrDefault(phase, new ConcurrentHashMap<>()).values()) {
+      operationStats.addStatusCountsTo(counts);
+    }
+    return counts;
+  }
+
+  /**
+   * Returns the number of requests of a phase that did not receive a successful response.
+   *
+   * @param phase the name of the phase.
+   * @return the number of failed requests.
+   */
+  long getErrorCount(String phase) {
+    return countErrors(getStatusCounts(phase));
+  }
+
+  /**
+   * Returns the results of every phase and operation since the start of the run.
+   *
+   * @return the results, ordered by phase and operation.
+   */
+  synchronized List<RunReport.Result> getTotalResults() {
+    collectInterval();
+    List<RunReport.Result> results = new ArrayList<>();
+    for (Map.Entry<String, Map<String, Histogram>> phase : totals.entrySet()) {
+      double phaseSeconds = Math.max(getPhaseNanos(phase.getKey()) / 1e9, 1e-9);
+      for (Map.Entry<String, Histogram> operation : phase.getValue().entrySet()) {
+        Map<Integer, Long> statusCounts = new TreeMap<>();
+        stats.get(phase.getKey()).get(operation.getKey()).addStatusCountsTo(statusCounts);
+        Histogram histogram = operation.getValue();
+        results.add(
+            new RunReport.Result(
+                phase.getKey(),
+                operation.getKey(),
+                histogram.getTotalCount(),
+                histogram.getTotalCount() / phaseSeconds,
+                histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9),
+                histogram.getMaxValue(),
+                countErrors(statusCounts),
+                statusCounts));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Writes the results of every phase and operation since the start of the run, to be merged into
+   * the recorder of another process with {@link #readTotals(DataInputStream)}.
+   *
+   * @param out the stream to write to.
+   * @throws IOException if the stream cannot be written.
+   */
+  synchronized void writeTotals(DataOutputStream out) throws IOException {
+    collectInterval();
+    int operations = 0;
+    for (Map<String, Histogram> phase : totals.values()) {
+      operations += phase.size();
+    }
+    out.writeInt(operations);
+    for (Map.Entry<String, Map<String, Histogram>> phase : totals.entrySet()) {
+      for (Map.Entry<String, Histogram> operation : phase.getValue().entrySet()) {
+        OperationStats operationStats = stats.get(phase.getKey()).get(operation.getKey());
+        out.writeUTF(phase.getKey());
+        out.writeUTF(operation.getKey());
+        out.writeLong(operationStats.firstStartNanos.get() + epochOffsetNanos);
+        out.writeLong(operationStats.lastEndNanos.get() + epochOffsetNanos);
+        Map<Integer, Long> statusCounts = new TreeMap<>();
+        operationStats.addStatusCountsTo(statusCounts);
+        out.writeInt(statusCounts.size());
+        for (Map.Entry<Integer, Long> entry : statusCounts.entrySet()) {
+          out.writeInt(entry.getKey());
+          out.writeLong(entry.getValue());
+        }
+        Histogram histogram = operation.getValue();
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+        out.writeInt(length);
+        out.write(buffer.array(), 0, length);
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Merges the results written by {@link #writeTotals(DataOutputStream)} in another process into
+   * the run totals.
+   *
+   * <p>The start and end times of the phases are exchanged as wall clock times, the clocks of the
+   * processes must therefore be synchronized.
+   *
+   * @param in the stream to read from.
+   * @throws IOException if the stream cannot be read or does not contain valid results.
+   */
+  synchronized void readTotals(DataInputStream in) throws IOException {
+    collectInterval();
+    int operations = in.readInt();
+    for (int i = 0; i < operations; i++) {
+      String phase = in.readUTF();
+      String operation = in.readUTF();
+      OperationStats operationStats =
+          stats
+              .computeIfAbsent(phase, ignored -> new ConcurrentHashMap<>())
+              .computeIfAbsent(operation, ignored -> new OperationStats());
+      operationStats.firstStartNanos.accumulate(in.readLong() - epochOffsetNanos);
+      operationStats.lastEndNanos.accumulate(in.readLong() - epochOffsetNanos);
+      int statusCodes = in.readInt();
+      for (int j = 0; j < statusCodes; j++) {
+        int statusCode = in.readInt();
+        operationStats
+            .statusCounts
+            .computeIfAbsent(statusCode, ignored -> new LongAdder())
+            .add(in.readLong());
+      }
+      byte[] encoded = new byte[in.readInt()];
+      in.readFully(encoded);
+      Histogram histogram;
+      try {
+        histogram = Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(encoded), 0);
+      } catch (DataFormatException e) {
+        throw new IOException("Invalid histogram of " + phase + " " + operation, e);
+      }
+      totals
+          .computeIfAbsent(phase, ignored -> new TreeMap<>())
+          .computeIfAbsent(operation, ignored -> new Histogram(SIGNIFICANT_DIGITS))
+          .add(histogram);
+    }
+  }
+
+  private static long countErrors(Map<Integer, Long> statusCounts) {
+    long errors = 0;
+    for (Map.Entry<Integer, Long> entry : statusCounts.entrySet()) {
+      if (!HttpUtil.parseResponseStatus(entry.getKey(), null).isOk()) {
+        errors += entry.getValue();
+      }
+    }
+    return errors;
+  }
+
+  /** Prints the latencies recorded since the previous call and adds them to the run totals. */
+  synchronized void printIntervalSummary() {
+    long intervalNanos = System.nanoTime() - intervalStartNanos;
+    Map<String, Map<String, Histogram>> interval = collectInterval();
+    Map<String, Long> phaseNanos = new TreeMap<>();
+    for (String phase : interval.keySet()) {
+      phaseNanos.put(phase, intervalNanos);
+    }
+    System.out.print(format("Interval", interval, phaseNanos, intervalNanos));
+  }
+
+  /** Prints the latencies recorded since the start of the run. */
+  synchronized void printTotalSummary() {
+    collectInterval();
+    Map<String, Long> phaseNanos = new TreeMap<>();
+    for (String phase : totals.keySet()) {
+      phaseNanos.put(phase, getPhaseNanos(phase));
+    }
+    System.out.print(format("Total", totals, phaseNanos, System.nanoTime() - runStartNanos));
+    for (String phase : totals.keySet()) {
+      System.out.println(phase + " status codes: " + getStatusCounts(phase));
+    }
+  }
+
+  // Returns the time from the first request of a phase to the end of its last request.
+  private long getPhaseNanos(String phase) {
+    long firstStartNanos = Long.MAX_VALUE;
+    long lastEndNanos = Long.MIN_VALUE;
+    for (OperationStats operationStats :
+        stats.getOrDefault(phase, new ConcurrentHashMap<>()).values()) {
+      firstStartNanos = Math.min(firstStartNanos, operationStats.firstStartNanos.get());
+      lastEndNanos = Math.max(lastEndNanos, operationStats.lastEndNanos.get());
+    }
+    return lastEndNanos > firstStartNanos ? lastEndNanos - firstStartNanos : 0;
+  }
+
+  // Moves the latencies recorded since the previous call into the run totals and returns them.
+  private Map<String, Map<String, Histogram>> collectInterval() {
+    long nowNanos = System.nanoTime();
+    Map<String, Map<String, Histogram>> interval = new TreeMap<>();
+    for (Map.Entry<String, ConcurrentMap<String, OperationStats>> phase : stats.entrySet()) {
+      Map<String, Histogram> phaseTotals =
+          totals.computeIfAbsent(phase.getKey(), ignored -> new TreeMap<>());
+      for (Map.Entry<String, OperationStats> operation : phase.getValue().entrySet()) {
+        Histogram histogram = operation.getValue().recorder.getIntervalHistogram();
+        if (histogram.getTotalCount() == 0) {
+          continue;
+        }
+        interval
+            .computeIfAbsent(phase.getKey(), ignored -> new TreeMap<>())
+            .put(operation.getKey(), histogram);
+        phaseTotals
+            .computeIfAbsent(operation.getKey(), ignored -> new Histogram(SIGNIFICANT_DIGITS))
+            .add(histogram);
+      }
+    }
+    intervalStartNanos = nowNanos;
+    return interval;
+  }
+
+  private static String format(
+      String title,
+      Map<String, Map<String, Histogram>> histograms,
+      Map<String, Long> phaseNanos,
+      long elapsedNanos) {
+    StringBuilder builder = new StringBuilder();
+    builder.append(
+        String.format(
+            "%s latency (us) over %.1fs%n%-10s %-10s %10s %10s %10s %10s %10s %10s %10s%n",
+            title,
+            elapsedNanos / 1e9,
+            "phase",
+            "operation",
+            "count",
+            "req/s",
+            "p50",
+            "p90",
+            "p99",
+            "p99.9",
+            "max"));
+    for (Map.Entry<String, Map<String, Histogram>> phase : histograms.entrySet()) {
+      double phaseSeconds = Math.max(phaseNanos.getOrDefault(phase.getKey(), 0L) / 1e9, 1e-9);
+      for (Map.Entry<String, Histogram> operation : phase.getValue().entrySet()) {
+        Histogram histogram = operation.getValue();
+        builder.append(
+            String.format(
+                "%-10s %-10s %10d %10.1f",
+                phase.getKey(),
+                operation.getKey(),
+                histogram.getTotalCount(),
+                histogram.getTotalCount() / phaseSeconds));
+        for (double percentile : PERCENTILES) {
+          builder.append(String.format(" %10d", histogram.getValueAtPercentile(percentile)));
+        }
+        builder.append(String.format(" %10d%n", histogram.getMaxValue()));
+      }
+    }
+    return builder.toString();
+  }
+
+  private static final class OperationStats {
+    private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+    private final ConcurrentMap<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+    private final LongAccumulator firstStartNanos = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator lastEndNanos = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+    private void addStatusCountsTo(Map<Integer, Long> counts) {
+      for (Map.Entry<Integer, LongAdder> entry : statusCounts.entrySet()) {
+        counts.merge(entry.getKey(), entry.getValue().sum(), Long::sum);
+      }
+    }
+  }
+}
@@ -0,0 +1,316 @@
+package loadgenerator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sequence of load phases, each with its own request rate over time.
+ *
+ * <p>A profile file contains one phase per line, blank lines and text after {@code #} are ignored.
+ * Rates are in requests per second, durations are a number followed by {@code ms}, {@code s},
+ * {@code m} or {@code h}:
+ *
+ * <pre>
+ * warmup &lt;rate&gt; &lt;duration&gt;
+ * ramp &lt;from rate&gt; &lt;to rate&gt; &lt;duration&gt;
+ * step &lt;first rate&gt; &lt;increment&gt; &lt;steps&gt; &lt;step duration&gt;
+ * spike &lt;base rate&gt; &lt;spike rate&gt; &lt;period&gt; &lt;spike duration&gt; &lt;duration&gt;
+ * soak &lt;rate&gt; &lt;duration&gt;
+ * </pre>
+ *
+ * <p>Results of a {@code warmup} phase are not recorded.
+ */
+final class LoadProfile {
+  private final List<Phase> phases;
+
+  private LoadProfile(List<Phase> phases) {
+    this.phases = Collections.unmodifiableList(phases);
+  }
+
+  /** Returns a profile that sends requests at a constant rate until the generator is closed. */
+  static LoadProfile constant(double requestsPerSecond) {
+    return constant("constant", requestsPerSecond, Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns a profile of a single phase with a constant request rate.
+   *
+   * @param name the name of the phase.
+   * @param requestsPerSecond the request rate.
+   * @param durationNanos the duration of the phase.
+   * @return the profile.
+   */
+  static LoadProfile constant(String name, double requestsPerSecond, long durationNanos) {
+    checkRate(requestsPerSecond);
+    return new LoadProfile(
+        Collections.singletonList(
+            new Phase(name, true, durationNanos, offset -> requestsPerSecond)));
+  }
+
+  /**
+   * Returns a profile of a single warmup phase with a constant request rate.
+   *
+   * @param requestsPerSecond the request rate.
+   * @param durationNanos the duration of the phase.
+   * @return the profile.
+   */
+  static LoadProfile warmup(double requestsPerSecond, long durationNanos) {
+    checkRate(requestsPerSecond);
+    return new LoadProfile(
+        Collections.singletonList(
+            new Phase("warmup", false, durationNanos, offset -> requestsPerSecond)));
+  }
+
+  /**
+   * Parses a profile file.
+   *
+   * @param path the path of the profile file.
+   * @return the profile.
+   * @throws IOException if the file cannot be read.
+   * @throws IllegalArgumentException if the file contains an invalid phase.
+   */
+  static LoadProfile parse(Path path) throws IOException {
+    return parse(path.toString(), Files.readAllLines(path, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Parses the lines of a profile file.
+   *
+   * @param source the name of the profile, used in error messages.
+   * @param lines the lines of the profile file.
+   * @return the profile.
+   * @throws IllegalArgumentException if the lines contain an invalid phase.
+   */
+  static LoadProfile parse(String source, List<String> lines) {
+    List<Phase> phases = new ArrayList<>();
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i);
+      int comment = line.indexOf('#');
+      if (comment >= 0) {
+        line = line.substring(0, comment);
+      }
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      try {
+        phases.add(parsePhase(String.format("%02d-", phases.size() + 1), line.split("\\s+")));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            source + ":" + (i + 1) + ": " + e.getMessage() + ": " + line, e);
+      }
+    }
+    if (phases.isEmpty()) {
+      throw new IllegalArgumentException(source + ": no phases");
+    }
+    return new LoadProfile(phases);
+  }
+
+  /**
+   * Returns this profile with all request rates multiplied by a factor, to split the load between
+   * several generators.
+   *
+   * @param factor the factor to multiply the request rates with.
+   * @return the scaled profile.
+   */
+  LoadProfile scale(double factor) {
+    List<Phase> scaled = new ArrayList<>();
+    for (Phase phase : phases) {
+      scaled.add(
+          new Phase(
+              phase.name,
+              phase.recorded,
+              phase.durationNanos,
+              offset -> factor * phase.getRequestsPerSecond(offset)));
+    }
+    return new LoadProfile(scaled);
+  }
+
+  private static Phase parsePhase(String namePrefix, String[] args) {
+    String type = args[0].toLowerCase(Locale.ROOT);
+    String name = namePrefix + type;
+    switch (type) {
+      case "warmup":
+        {
+          checkArguments(args, 3);
+          double rate = parseRate(args[1]);
+          return new Phase(name, false, parseDuration(args[2]), offset -> rate);
+        }
+      case "soak":
+        {
+          checkArguments(args, 3);
+          double rate = parseRate(args[1]);
+          return new Phase(name, true, parseDuration(args[2]), offset -> rate);
+        }
+      case "ramp":
+        {
+          checkArguments(args, 4);
+          double from = parseRate(args[1]);
+          double to = parseRate(args[2]);
+          long duration = parseDuration(args[3]);
+          return new Phase(name, true, duration, offset -> from + (to - from) * offset / duration);
+        }
+      case "step":
+        {
+          checkArguments(args, 5);
+          double first = parseRate(args[1]);
+          double increment = Double.parseDouble(args[2]);
+          int steps = Integer.parseInt(args[3]);
+          if (steps < 1) {
+            throw new IllegalArgumentException("steps must be positive: " + args[3]);
+          }
+          long stepDuration = parseDuration(args[4]);
+          if (stepDuration > Long.MAX_VALUE / steps) {
+            throw new IllegalArgumentException("duration too long: " + steps + " x " + args[4]);
+          }
+          checkRate(first + increment * (steps - 1));
+          return new Phase(
+              name,
+              true,
+              steps * stepDuration,
+              offset -> first + increment * (offset / stepDuration));
+        }
+      case "spike":
+        {
+          checkArguments(args, 6);
+          double base = parseRate(args[1]);
+          double spike = parseRate(args[2]);
+          long period = parseDuration(args[3]);
+          long spikeDuration = parseDuration(args[4]);
+          return new Phase(
+              name,
+              true,
+              parseDuration(args[5]),
+              offset -> offset % period < spikeDuration ? spike : base);
+        }
+      default:
+        throw new IllegalArgumentException("unknown phase type");
+    }
+  }
+
+  private static void checkArguments(String[] args, int expected) {
+    if (args.length != expected) {
+      throw new IllegalArgumentException(
+          "expected " + (expected - 1) + " arguments, found " + (args.length - 1));
+    }
+  }
+
+  private static double parseRate(String value) {
+    double rate = Double.parseDouble(value);
+    checkRate(rate);
+    return rate;
+  }
+
+  private static void checkRate(double rate) {
+    if (!(rate >= 0)) {
+      throw new IllegalArgumentException("rate must not be negative");
+    }
+  }
+
+  private static long parseDuration(String value) {
+    String lowerCase = value.toLowerCase(Locale.ROOT);
+    TimeUnit unit;
+    int suffix;
+    if (lowerCase.endsWith("ms")) {
+      unit = TimeUnit.MILLISECONDS;
+      suffix = 2;
+    } else if (lowerCase.endsWith("s")) {
+      unit = TimeUnit.SECONDS;
+      suffix = 1;
+    } else if (lowerCase.endsWith("m")) {
+      unit = TimeUnit.MINUTES;
+      suffix = 1;
+    } else if (lowerCase.endsWith("h")) {
+      unit = TimeUnit.HOURS;
+      suffix = 1;
+    } else {
+      throw new IllegalArgumentException("duration without unit: " + value);
+    }
+    long duration = unit.toNanos(Long.parseLong(lowerCase.substring(0, value.length() - suffix)));
+    if (duration <= 0) {
+      throw new IllegalArgumentException("duration must be positive: " + value);
+    }
+    return duration;
+  }
+
+  List<Phase> getPhases() {
+    return phases;
+  }
+
+  /** Returns the total duration of the profile in nanoseconds. */
+  long getDurationNanos() {
+    long duration = 0;
+    for (Phase phase : phases) {
+      if (phase.durationNanos > Long.MAX_VALUE - duration) {
+        return Long.MAX_VALUE;
+      }
+      duration += phase.durationNanos;
+    }
+    return duration;
+  }
+
+  /** One phase of a {@link LoadProfile}. */
+  static final class Phase {
+    /** The phase of the modes that are not driven by a profile. */
+    static final Phase RUN = new Phase("run", true, Long.MAX_VALUE, offset -> 0);
+
+    private final String name;
+    private final boolean recorded;
+    private final long durationNanos;
+    private final Rate rate;
+
+    private Phase(String name, boolean recorded, long durationNanos, Rate rate) {
+      this.name = name;
+      this.recorded = recorded;
+      this.durationNanos = durationNanos;
+      this.rate = rate;
+    }
+
+    /** Returns the name of the phase, prefixed with its position in the profile. */
+    String getName() {
+      return name;
+    }
+
+    /** Returns whether the latencies of the requests sent during this phase are recorded. */
+    boolean isRecorded() {
+      return recorded;
+    }
+
+    long getDurationNanos() {
+      return durationNanos;
+    }
+
+    /** Returns the request rate at {@code offsetNanos} from the start of the phase. */
+    double getRequestsPerSecond(long offsetNanos) {
+      return rate.at(offsetNanos);
+    }
+
+    /**
+     * Returns the number of requests of the phase, its rate integrated over its duration, or
+     * infinity if the phase does not end.
+     */
+    double getExpectedRequests() {
+      if (durationNanos == Long.MAX_VALUE) {
+        return Double.POSITIVE_INFINITY;
+      }
+      long sliceNanos = TimeUnit.MILLISECONDS.toNanos(1);
+      double requests = 0;
+      for (long offset = 0; offset < durationNanos; offset += sliceNanos) {
+        long nanos = Math.min(sliceNanos, durationNanos - offset);
+        requests += rate.at(offset + nanos / 2) * nanos / 1e9;
+      }
+      return requests;
+    }
+  }
+
+  private interface Rate {
+    double at(long offsetNanos);
+  }
+}
@@ -0,0 +1,212 @@
+package loadgenerator;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import loadgenerator.LoadProfile.Phase;
+import threadutil.ThreadUtil;
+
+/**
+ * Dispatches requests at the arrival rate of a {@link LoadProfile}, regardless of how long each
+ * request takes.
+ *
+ * <p>A single dispatcher thread computes the intended send time of every request from the start of
+ * the run and hands the request to a pool of worker threads once that time has been reached. A slow
+ * server therefore builds up a backlog in the worker queue instead of silently lowering the offered
+ * load.
+ */
+final class OpenLoopDriver implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(OpenLoopDriver.class.getName());
+  // How long the rate is assumed to stay the same until the next request, so that a rate changing
+  // in between, such as a ramp starting from no requests, is followed.
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final Sender sender;
+  private final LoadProfile profile;
+  private final ThreadPoolExecutor workers;
+  private final Thread dispatcher;
+  private final CountDownLatch completed = new CountDownLatch(1);
+  private final AtomicLong inFlight = new AtomicLong();
+  private volatile boolean running;
+  private volatile boolean finished;
+
+  /**
+   * Creates a driver that is started with {@link #start()}.
+   *
+   * @param sender sends one request.
+   * @param profile the phases and request rates to run.
+   * @param workerThreads the number of threads sending requests concurrently.
+   */
+  OpenLoopDriver(Sender sender, LoadProfile profile, int workerThreads) {
+    this.sender = sender;
+    this.profile = profile;
+    this.workers =
+        new ThreadPoolExecutor(
+            workerThreads,
+            workerThreads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            ThreadUtil.newThreadFactory("load-generator-worker-"));
+    this.dispatcher = new Thread(this::dispatch, "load-generator-dispatcher");
+  }
+
+  void start() {
+    running = true;
+    dispatcher.start();
+    logger.info("Open loop started with " + profile.getPhases().size() + " phase(s)");
+  }
+
+  /**
+   * Waits until all phases of the profile have been run and their requests have completed, or until
+   * the driver is closed.
+   *
+   * @return {@code true} if the whole profile was run, {@code false} if the driver was closed.
+   */
+  boolean awaitCompletion() throws InterruptedException {
+    completed.await();
+    return finished;
+  }
+
+  /**
+   * Like {@link #awaitCompletion()}, but gives up after a timeout.
+   *
+   * @return {@code true} if the whole profile was run, {@code false} if the driver was closed or
+   *     the timeout elapsed first.
+   */
+  boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+    return completed.await(timeout, unit) && finished;
+  }
+
+  private void dispatch() {
+    try {
+      long phaseStartNanos = System.nanoTime();
+      long intendedNanos = phaseStartNanos;
+      for (Phase phase : profile.getPhases()) {
+        logger.info("Starting phase " + phase.getName());
+        long phaseEndNanos = phaseStartNanos + phase.getDurationNanos();
+        if (phaseEndNanos < phaseStartNanos) {
+          phaseEndNanos = Long.MAX_VALUE;
+        }
+        if (phase.getRequestsPerSecond(intendedNanos - phaseStartNanos) <= 0) {
+          intendedNanos = nextIntendedNanos(phase, phaseStartNanos, intendedNanos, phaseEndNanos);
+        }
+        long sent = 0;
+        while (running && intendedNanos < phaseEndNanos) {
+          long delayNanos = intendedNanos - System.nanoTime();
+          if (delayNanos > 0) {
+            LockSupport.parkNanos(delayNanos);
+            continue;
+          }
+          long requestIntendedNanos = intendedNanos;
+          inFlight.incrementAndGet();
+          workers.execute(() -> send(requestIntendedNanos, phase));
+          sent++;
+          intendedNanos = nextIntendedNanos(phase, phaseStartNanos, intendedNanos, phaseEndNanos);
+        }
+        if (!running) {
+          return;
+        }
+        checkSent(phase, sent);
+        phaseStartNanos = phaseEndNanos;
+      }
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      // Requests of an asynchronous sender complete after the workers handed them off.
+      while (running && inFlight.get() > 0) {
+        LockSupport.parkNanos(IDLE_NANOS);
+      }
+      finished = running;
+    } catch (RejectedExecutionException e) {
+      // The driver was closed.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      completed.countDown();
+    }
+  }
+
+  // A sender that throws fails the request, rather than leaving it in flight until the drain ends.
+  private void send(long intendedStartNanos, Phase phase) {
+    CompletableFuture<?> future;
+    try {
+      future = sender.send(intendedStartNanos, phase);
+    } catch (RuntimeException e) {
+      future = new CompletableFuture<>();
+      future.completeExceptionally(e);
+    }
+    future.whenComplete(
+        (result, error) -> {
+          inFlight.decrementAndGet();
+          if (error != null) {
+            logger.warning("Request failed: " + error);
+          }
+        });
+  }
+
+  /**
+   * Returns the intended send time of the request after the one intended at {@code previousNanos}:
+   * the time at which the rate of the phase adds up to one request, evaluated at least every {@link
+   * #IDLE_NANOS}. Returns a time at or after the end of the phase if it sends no more requests.
+   */
+  private long nextIntendedNanos(
+      Phase phase, long phaseStartNanos, long previousNanos, long phaseEndNanos) {
+    double requests = 0;
+    long nanos = previousNanos;
+    while (running && nanos < phaseEndNanos) {
+      double requestsPerSecond = phase.getRequestsPerSecond(nanos - phaseStartNanos);
+      if (requestsPerSecond > 0) {
+        long nextNanos = (long) ((1 - requests) * 1e9 / requestsPerSecond);
+        if (nextNanos <= IDLE_NANOS) {
+          return nanos + nextNanos;
+        }
+        requests += requestsPerSecond * IDLE_NANOS / 1e9;
+      }
+      nanos += IDLE_NANOS;
+    }
+    return nanos;
+  }
+
+  // Warns if the requests sent in a phase are off from its rate, the dispatcher fell behind.
+  private static void checkSent(Phase phase, long sent) {
+    double expected = phase.getExpectedRequests();
+    String message =
+        "Phase "
+            + phase.getName()
+            + " sent "
+            + sent
+            + " requests, expected "
+            + Math.round(expected);
+    if (Math.abs(sent - expected) > Math.max(2, expected / 100)) {
+      logger.warning(message);
+    } else {
+      logger.info(message);
+    }
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    workers.shutdownNow();
+    completed.countDown();
+  }
+
+  /** Sends one request on behalf of a driver. */
+  interface Sender {
+    /**
+     * Sends one request.
+     *
+     * @param intendedStartNanos the {@link System#nanoTime()} at which the request was intended to
+     *     be sent.
+     * @param phase the phase of the load profile the request belongs to.
+     * @return completes when the request has been recorded, may already be completed.
+     */
+    CompletableFuture<?> send(long intendedStartNanos, Phase phase);
+  }
+}
@@ -0,0 +1,66 @@
+package loadgenerator;
+
+import java.util.Random;
+
+/**
+ * The operations sent by the load generator and their relative weights.
+ *
+ * <p>A mix is written as comma separated {@code operation:weight} pairs, for example {@code
+ * get:90,increment:8,set:2}. Weights do not need to add up to 100.
+ */
+final class OperationMix {
+  private static final String DEFAULT_MIX = "increment:1,decrement:1,get:1,set:1";
+
+  private final String[] operations;
+  private final double[] cumulativeWeights;
+
+  private OperationMix(String[] operations, double[] cumulativeWeights) {
+    this.operations = operations;
+    this.cumulativeWeights = cumulativeWeights;
+  }
+
+  /**
+   * Parses an operation mix.
+   *
+   * @param mix the mix, or an empty string for an equal share of every operation.
+   * @return the operation mix.
+   * @throws IllegalArgumentException if the mix is invalid.
+   */
+  static OperationMix parse(String mix) {
+    String[] entries = (mix == null || mix.trim().isEmpty() ? DEFAULT_MIX : mix).split(",");
+    String[] operations = new String[entries.length];
+    double[] cumulativeWeights = new double[entries.length];
+    double total = 0;
+    for (int i = 0; i < entries.length; i++) {
+      String[] entry = entries[i].trim().split(":");
+      if (entry.length != 2) {
+        throw new IllegalArgumentException("Invalid operation mix entry: " + entries[i]);
+      }
+      double weight = Double.parseDouble(entry[1]);
+      if (!(weight >= 0)) {
+        throw new IllegalArgumentException("Negative weight in operation mix: " + entries[i]);
+      }
+      total += weight;
+      operations[i] = entry[0];
+      cumulativeWeights[i] = total;
+    }
+    if (total <= 0) {
+      throw new IllegalArgumentException("Operation mix without any weight: " + mix);
+    }
+    for (int i = 0; i < cumulativeWeights.length; i++) {
+      cumulativeWeights[i] /= total;
+    }
+    return new OperationMix(operations, cumulativeWeights);
+  }
+
+  /** Returns a random operation, chosen according to the weights of the mix. */
+  String next(Random random) {
+    double value = random.nextDouble();
+    for (int i = 0; i < cumulativeWeights.length - 1; i++) {
+      if (value < cumulativeWeights[i]) {
+        return operations[i];
+      }
+    }
+    return operations[operations.length - 1];
+  }
+}
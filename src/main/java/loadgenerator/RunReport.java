@@ -0,0 +1,282 @@
+package loadgenerator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The results of a load generator run, written as JSON and CSV.
+ *
+ * <p>The CSV file of an earlier run can be read back as a baseline, to detect throughput and
+ * latency regressions.
+ */
+final class RunReport {
+  private static final String CSV_HEADER =
+      "phase,operation,count,requests_per_second,p50_us,p90_us,p99_us,p99_9_us,max_us,errors,"
+          + "status_codes";
+
+  private final Map<String, String> config;
+  private final List<Result> results;
+
+  RunReport(Map<String, String> config, List<Result> results) {
+    this.config = Collections.unmodifiableMap(new TreeMap<>(config));
+    this.results = Collections.unmodifiableList(new ArrayList<>(results));
+  }
+
+  /**
+   * Reads the CSV file of an earlier run.
+   *
+   * @param path the path of the CSV file.
+   * @return the report, without configuration.
+   * @throws IOException if the file cannot be read.
+   * @throws IllegalArgumentException if the file is not a report.
+   */
+  static RunReport readCsv(Path path) throws IOException {
+    List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+    if (lines.isEmpty() || !CSV_HEADER.equals(lines.get(0))) {
+      throw new IllegalArgumentException(path + ": not a load generator report");
+    }
+    List<Result> results = new ArrayList<>();
+    for (int i = 1; i < lines.size(); i++) {
+      String[] fields = lines.get(i).split(",", -1);
+      if (fields.length != 11) {
+        throw new IllegalArgumentException(path + ":" + (i + 1) + ": invalid line");
+      }
+      Map<Integer, Long> statusCounts = new TreeMap<>();
+      if (!fields[10].isEmpty()) {
+        for (String statusCount : fields[10].split(";")) {
+          String[] entry = statusCount.split("=");
+          statusCounts.put(Integer.parseInt(entry[0]), Long.parseLong(entry[1]));
+        }
+      }
+      results.add(
+          new Result(
+              fields[0],
+              fields[1],
+              Long.parseLong(fields[2]),
+              Double.parseDouble(fields[3]),
+              Long.parseLong(fields[4]),
+              Long.parseLong(fields[5]),
+              Long.parseLong(fields[6]),
+              Long.parseLong(fields[7]),
+              Long.parseLong(fields[8]),
+              Long.parseLong(fields[9]),
+              statusCounts));
+    }
+    return new RunReport(Collections.emptyMap(), results);
+  }
+
+  /**
+   * Writes the report as CSV, one line per phase and operation.
+   *
+   * @param path the path of the file, its parent directories are created if needed.
+   * @throws IOException if the file cannot be written.
+   */
+  void writeCsv(Path path) throws IOException {
+    createParentDirectories(path);
+    try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+      writer.write(CSV_HEADER);
+      writer.write('\n');
+      for (Result result : results) {
+        List<String> statusCounts = new ArrayList<>();
+        for (Map.Entry<Integer, Long> entry : result.statusCounts.entrySet()) {
+          statusCounts.add(entry.getKey() + "=" + entry.getValue());
+        }
+        writer.write(
+            String.join(
+                ",",
+                result.phase,
+                result.operation,
+                Long.toString(result.count),
+                String.format(Locale.ROOT, "%.3f", result.requestsPerSecond),
+                Long.toString(result.p50Micros),
+                Long.toString(result.p90Micros),
+                Long.toString(result.p99Micros),
+                Long.toString(result.p999Micros),
+                Long.toString(result.maxMicros),
+                Long.toString(result.errors),
+                String.join(";", statusCounts)));
+        writer.write('\n');
+      }
+    }
+  }
+
+  /**
+   * Writes the report as JSON, with the configuration of the run and the results grouped by phase.
+   *
+   * @param path the path of the file, its parent directories are created if needed.
+   * @throws IOException if the file cannot be written.
+   */
+  void writeJson(Path path) throws IOException {
+    createParentDirectories(path);
+    Map<String, List<Result>> phases = new TreeMap<>();
+    for (Result result : results) {
+      phases.computeIfAbsent(result.phase, ignored -> new ArrayList<>()).add(result);
+    }
+    StringBuilder json = new StringBuilder("{\n  \"config\": {");
+    String separator = "\n";
+    for (Map.Entry<String, String> entry : config.entrySet()) {
+      json.append(separator)
+          .append("    ")
+          .append(quote(entry.getKey()))
+          .append(": ")
+          .append(quote(entry.getValue()));
+      separator = ",\n";
+    }
+    json.append("\n  },\n  \"phases\": [");
+    separator = "\n";
+    for (Map.Entry<String, List<Result>> phase : phases.entrySet()) {
+      json.append(separator)
+          .append("    {\n      \"name\": ")
+          .append(quote(phase.getKey()))
+          .append(",\n      \"operations\": [");
+      String operationSeparator = "\n";
+      for (Result result : phase.getValue()) {
+        json.append(operationSeparator)
+            .append("        {\"name\": ")
+            .append(quote(result.operation))
+            .append(", \"count\": ")
+            .append(result.count)
+            .append(
+                String.format(
+                    Locale.ROOT, ", \"requestsPerSecond\": %.3f", result.requestsPerSecond))
+            .append(", \"latencyMicros\": {\"p50\": ")
+            .append(result.p50Micros)
+            .append(", \"p90\": ")
+            .append(result.p90Micros)
+            .append(", \"p99\": ")
+            .append(result.p99Micros)
+            .append(", \"p99.9\": ")
+            .append(result.p999Micros)
+            .append(", \"max\": ")
+            .append(result.maxMicros)
+            .append("}, \"errors\": ")
+            .append(result.errors)
+            .append(", \"statusCodes\": {");
+        String statusSeparator = "";
+        for (Map.Entry<Integer, Long> entry : result.statusCounts.entrySet()) {
+          json.append(statusSeparator)
+              .append(quote(entry.getKey().toString()))
+              .append(": ")
+              .append(entry.getValue());
+          statusSeparator = ", ";
+        }
+        json.append("}}");
+        operationSeparator = ",\n";
+      }
+      json.append("\n      ]\n    }");
+      separator = ",\n";
+    }
+    json.append("\n  ]\n}\n");
+    Files.write(path, json.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Compares this report with the report of an earlier run.
+   *
+   * @param baseline the report of the earlier run.
+   * @param maxThroughputDrop the largest acceptable throughput drop, as a fraction of the baseline.
+   * @param maxP99Increase the largest acceptable p99 latency increase, as a fraction of the
+   *     baseline.
+   * @return a description of each regression, empty if there is none.
+   */
+  List<String> findRegressions(
+      RunReport baseline, double maxThroughputDrop, double maxP99Increase) {
+    Map<String, Result> current = new TreeMap<>();
+    for (Result result : results) {
+      current.put(result.phase + " " + result.operation, result);
+    }
+    List<String> regressions = new ArrayList<>();
+    for (Result expected : baseline.results) {
+      String name = expected.phase + " " + expected.operation;
+      Result actual = current.get(name);
+      if (actual == null) {
+        regressions.add(name + ": missing from this run");
+        continue;
+      }
+      if (actual.requestsPerSecond < expected.requestsPerSecond * (1 - maxThroughputDrop)) {
+        regressions.add(
+            String.format(
+                "%s: throughput dropped from %.1f to %.1f requests/second",
+                name, expected.requestsPerSecond, actual.requestsPerSecond));
+      }
+      if (actual.p99Micros > expected.p99Micros * (1 + maxP99Increase)) {
+        regressions.add(
+            String.format(
+                "%s: p99 latency rose from %d to %d us",
+                name, expected.p99Micros, actual.p99Micros));
+      }
+    }
+    return regressions;
+  }
+
+  private static void createParentDirectories(Path path) throws IOException {
+    Path parent = path.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+  }
+
+  private static String quote(String value) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  /** The results of one operation in one phase. */
+  static final class Result {
+    private final String phase;
+    private final String operation;
+    private final long count;
+    private final double requestsPerSecond;
+    private final long p50Micros;
+    private final long p90Micros;
+    private final long p99Micros;
+    private final long p999Micros;
+    private final long maxMicros;
+    private final long errors;
+    private final Map<Integer, Long> statusCounts;
+
+    Result(
+        String phase,
+        String operation,
+        long count,
+        double requestsPerSecond,
+        long p50Micros,
+        long p90Micros,
+        long p99Micros,
+        long p999Micros,
+        long maxMicros,
+        long errors,
+        Map<Integer, Long> statusCounts) {
+      this.phase = phase;
+      this.operation = operation;
+      this.count = count;
+      this.requestsPerSecond = requestsPerSecond;
+      this.p50Micros = p50Micros;
+      this.p90Micros = p90Micros;
+      this.p99Micros = p99Micros;
+      this.p999Micros = p999Micros;
+      this.maxMicros = maxMicros;
+      this.errors = errors;
+      this.statusCounts = Collections.unmodifiableMap(new TreeMap<>(statusCounts));
+    }
+  }
+}
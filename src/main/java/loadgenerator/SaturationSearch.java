@@ -0,0 +1,208 @@
+package loadgenerator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import loadgenerator.OpenLoopDriver.Sender;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Searches the highest request rate that the servers sustain within a latency and error rate
+ * objective.
+ *
+ * <p>Every probe sends requests at a constant rate for a fixed duration. The search first probes
+ * the lowest and the highest rate of its range, then bisects the range until it is narrower than
+ * the requested precision. A probe passes if its p99 latency and its error rate are within the
+ * objective and all of its requests completed shortly after the end of the probe.
+ */
+final class SaturationSearch implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(SaturationSearch.class.getName());
+
+  private final Sender sender;
+  private final LatencyRecorder latencyRecorder;
+  private final int workerThreads;
+  private final double minRequestsPerSecond;
+  private final double maxRequestsPerSecond;
+  private final double precision;
+  private final long warmupNanos;
+  private final long probeDurationNanos;
+  private final long cooldownNanos;
+  private final long maxP99Micros;
+  private final double maxErrorRate;
+  private int probes;
+  private volatile OpenLoopDriver currentProbe;
+  private volatile boolean closed;
+
+  /**
+   * Creates a search that is run with {@link #run()}.
+   *
+   * @param sender sends one request.
+   * @param latencyRecorder the recorder the sender records its requests in.
+   * @param workerThreads the number of threads sending requests concurrently.
+   * @param minRequestsPerSecond the lowest rate to probe.
+   * @param maxRequestsPerSecond the highest rate to probe.
+   * @param precision the width of the final range, relative to its lower bound.
+   * @param warmupNanos how long to send requests at the lowest rate before the first probe.
+   * @param probeDurationNanos how long each rate is probed.
+   * @param cooldownNanos the pause after each probe, to let the servers drain their queues.
+   * @param maxP99Micros the highest acceptable p99 latency.
+   * @param maxErrorRate the highest acceptable fraction of failed requests.
+   */
+  SaturationSearch(
+      Sender sender,
+      LatencyRecorder latencyRecorder,
+      int workerThreads,
+      double minRequestsPerSecond,
+      double maxRequestsPerSecond,
+      double precision,
+      long warmupNanos,
+      long probeDurationNanos,
+      long cooldownNanos,
+      long maxP99Micros,
+      double maxErrorRate) {
+    if (!(minRequestsPerSecond > 0 && minRequestsPerSecond < maxRequestsPerSecond)) {
+      throw new IllegalArgumentException("Invalid request rate range");
+    }
+    if (!(precision > 0)) {
+      throw new IllegalArgumentException("precision must be positive");
+    }
+    this.sender = sender;
+    this.latencyRecorder = latencyRecorder;
+    this.workerThreads = workerThreads;
+    this.minRequestsPerSecond = minRequestsPerSecond;
+    this.maxRequestsPerSecond = maxRequestsPerSecond;
+    this.precision = precision;
+    this.warmupNanos = warmupNanos;
+    this.probeDurationNanos = probeDurationNanos;
+    this.cooldownNanos = cooldownNanos;
+    this.maxP99Micros = maxP99Micros;
+    this.maxErrorRate = maxErrorRate;
+  }
+
+  /**
+   * Runs the search and prints the highest sustainable rate with its latency histogram.
+   *
+   * @return {@code true} if the search completed, {@code false} if it was closed first.
+   */
+  boolean run() throws InterruptedException {
+    if (warmupNanos > 0 && !runDriver(LoadProfile.warmup(minRequestsPerSecond, warmupNanos))) {
+      return false;
+    }
+    Probe best = probe(minRequestsPerSecond);
+    if (best == null) {
+      return false;
+    }
+    if (!best.passed) {
+      printResult("Capacity is below the lowest probed rate", best);
+      return true;
+    }
+    Probe highest = probe(maxRequestsPerSecond);
+    if (highest == null) {
+      return false;
+    }
+    if (highest.passed) {
+      printResult("Capacity is at least the highest probed rate", highest);
+      return true;
+    }
+    double low = minRequestsPerSecond;
+    double high = maxRequestsPerSecond;
+    while (high - low > low * precision) {
+      Probe probe = probe((low + high) / 2);
+      if (probe == null) {
+        return false;
+      }
+      if (probe.passed) {
+        low = probe.requestsPerSecond;
+        best = probe;
+      } else {
+        high = probe.requestsPerSecond;
+      }
+    }
+    printResult("Capacity", best);
+    return true;
+  }
+
+  // Returns null if the search was closed during the probe.
+  private Probe probe(double requestsPerSecond) throws InterruptedException {
+    String phase = String.format("%02d-probe", ++probes);
+    logger.info("Probing " + requestsPerSecond + " requests/second in phase " + phase);
+    boolean completed =
+        runDriver(LoadProfile.constant(phase, requestsPerSecond, probeDurationNanos));
+    if (closed) {
+      return null;
+    }
+    Histogram histogram = latencyRecorder.getTotalHistogram(phase);
+    long requests = histogram.getTotalCount();
+    double errorRate = requests == 0 ? 1 : (double) latencyRecorder.getErrorCount(phase) / requests;
+    boolean passed =
+        completed
+            && requests > 0
+            && histogram.getValueAtPercentile(99) <= maxP99Micros
+            && errorRate <= maxErrorRate;
+    logger.info(
+        String.format(
+            "Phase %s at %.1f requests/second %s: p99 %d us, %.2f%% errors%s",
+            phase,
+            requestsPerSecond,
+            passed ? "passed" : "failed",
+            histogram.getValueAtPercentile(99),
+            errorRate * 100,
+            completed ? "" : ", requests did not complete in time"));
+    TimeUnit.NANOSECONDS.sleep(cooldownNanos);
+    return new Probe(requestsPerSecond, histogram, errorRate, passed);
+  }
+
+  // Returns whether all requests of the profile completed shortly after its end.
+  private boolean runDriver(LoadProfile profile) throws InterruptedException {
+    OpenLoopDriver driver = new OpenLoopDriver(sender, profile, workerThreads);
+    currentProbe = driver;
+    if (closed) {
+      return false;
+    }
+    driver.start();
+    // Requests still queued long after the end of the profile mean the rate is not sustainable.
+    long drainNanos =
+        Math.max(TimeUnit.SECONDS.toNanos(1), TimeUnit.MICROSECONDS.toNanos(10 * maxP99Micros));
+    boolean completed =
+        driver.awaitCompletion(profile.getDurationNanos() + drainNanos, TimeUnit.NANOSECONDS);
+    driver.close();
+    return completed;
+  }
+
+  private void printResult(String title, Probe probe) {
+    System.out.println(
+        String.format(
+            "%s: %.1f requests/second with p99 %.3f ms and %.2f%% errors"
+                + " (objective: p99 <= %.3f ms, errors <= %.2f%%)",
+            title,
+            probe.requestsPerSecond,
+            probe.histogram.getValueAtPercentile(99) / 1000.0,
+            probe.errorRate * 100,
+            maxP99Micros / 1000.0,
+            maxErrorRate * 100));
+    // Latencies are recorded in microseconds, print them in milliseconds.
+    probe.histogram.outputPercentileDistribution(System.out, 1000.0);
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    OpenLoopDriver driver = currentProbe;
+    if (driver != null) {
+      driver.close();
+    }
+  }
+
+  private static final class Probe {
+    private final double requestsPerSecond;
+    private final Histogram histogram;
+    private final double errorRate;
+    private final boolean passed;
+
+    private Probe(double requestsPerSecond, Histogram histogram, double errorRate, boolean passed) {
+      this.requestsPerSecond = requestsPerSecond;
+      this.histogram = histogram;
+      this.errorRate = errorRate;
+      this.passed = passed;
+    }
+  }
+}
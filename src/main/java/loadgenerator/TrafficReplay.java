@@ -0,0 +1,165 @@
+package loadgenerator;
+
+import httpserver.TrafficCapture;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import threadutil.ThreadUtil;
+
+/**
+ * Re-issues the requests of a capture file written by {@link TrafficCapture}, keeping their
+ * original inter-arrival times.
+ *
+ * <p>Like the {@link OpenLoopDriver}, a single dispatcher thread hands every request to a pool of
+ * worker threads at its intended send time, so a slow server does not change the replayed arrival
+ * pattern. The capture file is memory mapped and read sequentially.
+ */
+final class TrafficReplay implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(TrafficReplay.class.getName());
+  // How long to wait before checking again whether the last requests have completed.
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final Sender sender;
+  private final TrafficCapture.Reader reader;
+  private final double speed;
+  private final ThreadPoolExecutor workers;
+  private final Thread dispatcher;
+  private final CountDownLatch completed = new CountDownLatch(1);
+  private final AtomicLong inFlight = new AtomicLong();
+  private volatile boolean running;
+  private volatile boolean finished;
+
+  /**
+   * Creates a replay that is started with {@link #start()}.
+   *
+   * @param sender sends one captured request.
+   * @param captureFile the capture file to replay.
+   * @param speed how much faster than captured to replay, {@code 2} halves the inter-arrival times.
+   * @param workerThreads the number of threads sending requests concurrently.
+   * @throws IOException if the capture file cannot be read.
+   */
+  TrafficReplay(Sender sender, Path captureFile, double speed, int workerThreads)
+      throws IOException {
+    if (!(speed > 0)) {
+      throw new IllegalArgumentException("The replay speed must be positive: " + speed);
+    }
+    this.sender = sender;
+    this.reader = TrafficCapture.read(captureFile);
+    this.speed = speed;
+    this.workers =
+        new ThreadPoolExecutor(
+            workerThreads,
+            workerThreads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            ThreadUtil.newThreadFactory("load-generator-worker-"));
+    this.dispatcher = new Thread(this::dispatch, "load-generator-dispatcher");
+  }
+
+  void start() {
+    running = true;
+    dispatcher.start();
+    logger.info("Replay started at " + speed + "x speed");
+  }
+
+  /**
+   * Waits until all captured requests have been replayed and have completed, or until the replay is
+   * closed.
+   *
+   * @return {@code true} if the whole capture was replayed, {@code false} if the replay was closed.
+   */
+  boolean awaitCompletion() throws InterruptedException {
+    completed.await();
+    return finished;
+  }
+
+  private void dispatch() {
+    try {
+      long startNanos = System.nanoTime();
+      long firstArrivalMicros = -1;
+      long count = 0;
+      while (running && reader.next()) {
+        if (firstArrivalMicros < 0) {
+          firstArrivalMicros = reader.getArrivalMicros();
+        }
+        long offsetNanos =
+            (long)
+                (TimeUnit.MICROSECONDS.toNanos(reader.getArrivalMicros() - firstArrivalMicros)
+                    / speed);
+        long intendedNanos = startNanos + offsetNanos;
+        long delayNanos;
+        while (running && (delayNanos = intendedNanos - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(delayNanos);
+        }
+        String target = reader.getTarget();
+        inFlight.incrementAndGet();
+        workers.execute(() -> send(target, intendedNanos));
+        count++;
+      }
+      if (!running) {
+        return;
+      }
+      logger.info("Replayed " + count + " request(s)");
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      // Requests of an asynchronous sender complete after the workers handed them off.
+      while (running && inFlight.get() > 0) {
+        LockSupport.parkNanos(IDLE_NANOS);
+      }
+      finished = running;
+    } catch (RejectedExecutionException e) {
+      // The replay was closed.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      completed.countDown();
+    }
+  }
+
+  // A sender that throws fails the request, rather than leaving it in flight until the drain ends.
+  private void send(String target, long intendedStartNanos) {
+    CompletableFuture<?> future;
+    try {
+      future = sender.send(target, intendedStartNanos);
+    } catch (RuntimeException e) {
+      future = new CompletableFuture<>();
+      future.completeExceptionally(e);
+    }
+    future.whenComplete(
+        (result, error) -> {
+          inFlight.decrementAndGet();
+          if (error != null) {
+            logger.warning("Request failed: " + error);
+          }
+        });
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    workers.shutdownNow();
+    completed.countDown();
+  }
+
+  /** Sends one captured request on behalf of a replay. */
+  interface Sender {
+    /**
+     * Sends one captured request.
+     *
+     * @param target the path and query of the captured request.
+     * @param intendedStartNanos the {@link System#nanoTime()} at which the request was intended to
+     *     be sent.
+     * @return completes when the request has been recorded, may already be completed.
+     */
+    CompletableFuture<?> send(String target, long intendedStartNanos);
+  }
+}
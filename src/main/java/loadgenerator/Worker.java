@@ -0,0 +1,133 @@
+package loadgenerator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import loadgenerator.OpenLoopDriver.Sender;
+
+/**
+ * Runs its share of a load profile on behalf of a {@link Coordinator} and sends back its results.
+ */
+final class Worker implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(Worker.class.getName());
+  private static final long CONNECT_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  private final Sender sender;
+  private final LatencyRecorder latencyRecorder;
+  private final String coordinatorHost;
+  private final int coordinatorPort;
+  private final int workerThreads;
+  private volatile Socket socket;
+  private volatile OpenLoopDriver driver;
+  private volatile boolean closed;
+
+  /**
+   * Creates a worker that is run with {@link #run()}.
+   *
+   * @param sender sends one request.
+   * @param latencyRecorder the recorder the sender records its requests in.
+   * @param coordinatorHost the host of the coordinator.
+   * @param coordinatorPort the port of the coordinator's control socket.
+   * @param workerThreads the number of threads sending requests concurrently.
+   */
+  Worker(
+      Sender sender,
+      LatencyRecorder latencyRecorder,
+      String coordinatorHost,
+      int coordinatorPort,
+      int workerThreads) {
+    this.sender = sender;
+    this.latencyRecorder = latencyRecorder;
+    this.coordinatorHost = coordinatorHost;
+    this.coordinatorPort = coordinatorPort;
+    this.workerThreads = workerThreads;
+  }
+
+  /**
+   * Connects to the coordinator, runs the profile it sends and sends back the results.
+   *
+   * @return {@code true} if the profile was run and the results were sent, {@code false} if the
+   *     worker was closed first.
+   * @throws IOException if the connection to the coordinator fails.
+   */
+  boolean run() throws IOException, InterruptedException {
+    try {
+      connect();
+      if (closed) {
+        return false;
+      }
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      int lineCount = in.readInt();
+      List<String> lines = new ArrayList<>(lineCount);
+      for (int i = 0; i < lineCount; i++) {
+        lines.add(in.readUTF());
+      }
+      double share = in.readDouble();
+      long startEpochMillis = in.readLong();
+      LoadProfile profile = LoadProfile.parse("coordinator profile", lines).scale(share);
+      logger.info(String.format("Running %.0f%% of the coordinator's profile", share * 100));
+
+      long delayMillis = startEpochMillis - System.currentTimeMillis();
+      if (delayMillis > 0) {
+        Thread.sleep(delayMillis);
+      }
+      OpenLoopDriver openLoopDriver = new OpenLoopDriver(sender, profile, workerThreads);
+      driver = openLoopDriver;
+      if (closed) {
+        return false;
+      }
+      openLoopDriver.start();
+      if (!openLoopDriver.awaitCompletion()) {
+        return false;
+      }
+      latencyRecorder.writeTotals(
+          new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+      return true;
+    } catch (IOException e) {
+      if (closed) {
+        return false;
+      }
+      throw e;
+    } finally {
+      if (socket != null) {
+        socket.close();
+      }
+    }
+  }
+
+  // Waits for the coordinator, which may be started after its workers.
+  private void connect() throws IOException, InterruptedException {
+    while (!closed) {
+      try {
+        socket = new Socket(coordinatorHost, coordinatorPort);
+        logger.info("Connected to the coordinator at " + coordinatorHost + ":" + coordinatorPort);
+        return;
+      } catch (ConnectException e) {
+        Thread.sleep(CONNECT_RETRY_MILLIS);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    if (driver != null) {
+      driver.close();
+    }
+    try {
+      if (socket != null) {
+        socket.close();
+      }
+    } catch (IOException e) {
+      logger.info(e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package threadutil;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+public final class ThreadUtil {
+  private static final Logger logger = Logger.getLogger(ThreadUtil.class.getName());
+
+  private ThreadUtil() {}
+
+  /**
+   * Creates an executor that starts a new virtual thread for each task.
+   *
+   * <p>Virtual threads are only available from Java 21, on older runtimes this falls back to a
+   * cached pool of platform threads, which still gives one thread per task.
+   *
+   * @param threadNamePrefix the name prefix of the platform threads used by the fallback.
+   * @return the executor, which must be shut down by the caller.
+   */
+  public static ExecutorService newVirtualThreadPerTaskExecutor(String threadNamePrefix) {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      logger.info("Virtual threads are not available, using platform threads");
+      return Executors.newCachedThreadPool(newThreadFactory(threadNamePrefix));
+    }
+  }
+
+  /**
+   * Creates a factory of platform threads named {@code threadNamePrefix} followed by a counter.
+   *
+   * @param threadNamePrefix the name prefix of the threads.
+   * @return the thread factory.
+   */
+  public static ThreadFactory newThreadFactory(String threadNamePrefix) {
+    AtomicInteger threadCount = new AtomicInteger();
+    return runnable -> new Thread(runnable, threadNamePrefix + threadCount.incrementAndGet());
+  }
+}